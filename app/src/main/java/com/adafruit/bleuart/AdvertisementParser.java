@@ -0,0 +1,140 @@
+package com.adafruit.bleuart;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// Reads service UUIDs out of raw advertising data.  Filtering by custom UUID is broken in
+// Android 4.3 and 4.4, see:
+//   http://stackoverflow.com/questions/18019161/startlescan-with-128-bit-uuids-doesnt-work-on-native-android-ble-implementation?noredirect=1#comment27879874_18019161
+// so we look for the UART service ourselves.  Advertisements come from anyone in radio range, so
+// every length is checked against the array: a truncated or malformed structure ends the walk
+// instead of throwing, and no byte outside the record is ever read.
+public final class AdvertisementParser {
+    // AD types listing service UUIDs.
+    public static final int TYPE_UUID16_PARTIAL = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_PARTIAL = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_PARTIAL = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+
+    // 16 and 32-bit UUIDs are shorthand for xxxxxxxx-0000-1000-8000-00805F9B34FB.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private AdvertisementParser() {
+    }
+
+    // A 128-bit UUID the way advertisements carry it, least significant byte first.
+    public static byte[] toAdvertisedBytes(UUID uuid) {
+        byte[] bytes = new byte[16];
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (lsb >>> (8 * i));
+            bytes[8 + i] = (byte) (msb >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    // True if the advertisement lists the 128-bit service UUID, given as toAdvertisedBytes()
+    // returns it.  Walks the AD structures in place and compares raw bytes, so rejecting the
+    // thousands of unrelated advertisements a busy scan reports costs no allocation.
+    public static boolean advertisesService(byte[] record, byte[] uuid) {
+        if (record == null) {
+            return false;
+        }
+        int offset = 0;
+        while (offset < record.length) {
+            int length = record[offset] & 0xFF;
+            if (length == 0) {
+                // Zero padding after the last structure.
+                break;
+            }
+            int end = offset + 1 + length;
+            if (end > record.length) {
+                // Truncated structure.
+                break;
+            }
+            int type = record[offset + 1] & 0xFF;
+            if (type == TYPE_UUID128_PARTIAL || type == TYPE_UUID128_COMPLETE) {
+                for (int u = offset + 2; u + 16 <= end; u += 16) {
+                    if (regionMatches(record, u, uuid)) {
+                        return true;
+                    }
+                }
+            }
+            offset = end;
+        }
+        return false;
+    }
+
+    // Every service UUID the advertisement lists, in the order they appear.  16 and 32-bit UUIDs
+    // are expanded against the Bluetooth base UUID.  Stops at the first malformed structure and
+    // returns what it found before it.
+    public static List<UUID> parseUUIDs(byte[] record) {
+        List<UUID> uuids = new ArrayList<UUID>();
+        if (record == null) {
+            return uuids;
+        }
+        int offset = 0;
+        while (offset < record.length) {
+            int length = record[offset] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            int end = offset + 1 + length;
+            if (end > record.length) {
+                break;
+            }
+            int type = record[offset + 1] & 0xFF;
+            int data = offset + 2;
+            switch (type) {
+                case TYPE_UUID16_PARTIAL:
+                case TYPE_UUID16_COMPLETE:
+                    for (int u = data; u + 2 <= end; u += 2) {
+                        uuids.add(shortUuid(readLittleEndian(record, u, 2)));
+                    }
+                    break;
+                case TYPE_UUID32_PARTIAL:
+                case TYPE_UUID32_COMPLETE:
+                    for (int u = data; u + 4 <= end; u += 4) {
+                        uuids.add(shortUuid(readLittleEndian(record, u, 4)));
+                    }
+                    break;
+                case TYPE_UUID128_PARTIAL:
+                case TYPE_UUID128_COMPLETE:
+                    for (int u = data; u + 16 <= end; u += 16) {
+                        long lsb = readLittleEndian(record, u, 8);
+                        long msb = readLittleEndian(record, u + 8, 8);
+                        uuids.add(new UUID(msb, lsb));
+                    }
+                    break;
+            }
+            offset = end;
+        }
+        return uuids;
+    }
+
+    private static UUID shortUuid(long value) {
+        return new UUID(BASE_UUID_MSB | (value << 32), BASE_UUID_LSB);
+    }
+
+    private static long readLittleEndian(byte[] data, int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (data[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -7,24 +7,35 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Random;
 import java.util.UUID;
 import java.util.WeakHashMap;
 import java.lang.String;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Log;
 
-public class BluetoothLeUart extends BluetoothGattCallback implements BluetoothAdapter.LeScanCallback, UartBase {
+public class BluetoothLeUart extends BluetoothGattCallback implements UartBase, Handler.Callback {
 
     // UUIDs for UART service and associated characteristics.
     public static UUID UART_UUID = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
@@ -41,109 +52,484 @@ public class BluetoothLeUart extends BluetoothGattCallback implements BluetoothA
     public static UUID DIS_HWREV_UUID = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
     public static UUID DIS_SWREV_UUID = UUID.fromString("00002a28-0000-1000-8000-00805f9b34fb");
 
+    // UUIDs for the Generic Attribute service and its Database Hash, which changes whenever the
+    // peer's attribute table does.
+    public static UUID GATT_SERVICE_UUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    public static UUID DATABASE_HASH_UUID = UUID.fromString("00002b2a-0000-1000-8000-00805f9b34fb");
+
+    // ATT MTU every link starts with, the size we ask for once connected (247 bytes fills a
+    // single data-length-extended link layer packet) and the ATT header that eats into each write.
+    public static final int DEFAULT_MTU = 23;
+    public static final int REQUESTED_MTU = 247;
+    public static final int ATT_HEADER_SIZE = 3;
+
+    private static final int RX_STREAM_CAPACITY = 64 * 1024;
+    private static final int BULK_FRAMES = 4; // Queued frames that count as a bulk transfer
+    private static final long BOOST_HOLD_MS = 1000; // How long a drained link stays boosted
+    private static final long RECONNECT_BASE_MS = 250; // Backoff before the second reconnect attempt
+    private static final long RECONNECT_MAX_MS = 30 * 1000; // Longest backoff between attempts
+    private static final long RECONNECT_ATTEMPT_MS = 30 * 1000; // How long one attempt may take to set up the link
+    private static final int MAX_RECONNECT_ATTEMPTS = 10; // Attempts before giving the peripheral up
+
+    //MSG IDs
+    private static final int MSG_CONNECTION_STATE = 10;
+    private static final int MSG_SERVICES_DISCOVERED = 20;
+    private static final int MSG_DESCRIPTOR_WRITE = 30;
+    private static final int MSG_MTU_CHANGED = 40;
+    private static final int MSG_RECEIVE = 50;
+    private static final int MSG_CHARACTERISTIC_READ = 60;
+    private static final int MSG_CHARACTERISTIC_WRITE = 70;
+    private static final int MSG_DEVICE_FOUND = 80;
+    private static final int MSG_KICK = 90;
+    private static final int MSG_DISCONNECT = 100;
+    private static final int MSG_CONNECT = 110;
+    private static final int MSG_PROFILE = 120;
+    private static final int MSG_PHY_UPDATE = 130;
+
     // Internal UART state.
     private Context context;
     private WeakHashMap<UartBase.HostCallback, Object> callbacks = new WeakHashMap<UartBase.HostCallback, Object>();
     private BluetoothAdapter adapter;
-    private BluetoothGatt gatt;
-    private BluetoothGattCharacteristic tx;
-    private BluetoothGattCharacteristic rx;
-    private boolean connectFirst;
-    private boolean writeInProgress; // Flag to indicate a write is currently in progress
+    private volatile boolean connectFound; // Connect to UART devices found by the scan
+    private volatile int maxConnections = 1; // Stop connecting to found devices at this many
+    private BluetoothLeScanner scanner; // Scanner the current scan was started on, null when not scanning
+    private volatile boolean scanFilterOffloaded; // The controller only reports UART devices
+    private volatile byte[] scanUuid; // UART_UUID as it appears in advertisements
+    private boolean writeWithoutResponse; // Caller asked for unacknowledged (streaming) writes
+
+    // Connected peripherals by address, and by link id for the BLE thread.
+    private Map<String, PeripheralLink> links = new ConcurrentHashMap<String, PeripheralLink>();
+    private SparseArray<PeripheralLink> linksById = new SparseArray<PeripheralLink>(); // BLE thread only
+    private int nextLinkId;
+
+    // TX rings, framing, compression and metrics for every peripheral; the links below only
+    // move its packets
+    private final UartEngine engine;
+    private volatile UartBase.ConnectionProfile connectionProfile = UartBase.ConnectionProfile.BALANCED;
+    private volatile boolean bulkBoost = true; // Raise connection priority while a bulk transfer is queued
+    private volatile boolean autoReconnect = true; // Reconnect to peripherals we didn't disconnect from
+    private Random reconnectJitter = new Random(); // BLE thread only
+    private volatile long scanStartNanos; // When the current scan started
+    private final SetupLatency setupLatency = new SetupLatency();
+
+    //Handler for working with BT ops; GATT callbacks, the operation queues and UART data all run here
+    private Handler bleHandler;
+
+    // Stream views over the UART, created on first use.
+    private volatile UartInputStream inputStream;
+    private UartOutputStream outputStream;
+
+    // State for one peripheral.  Each one has its own GATT connection and operation queue, and
+    // its own TX ring in the engine, so a slow peripheral doesn't hold up the others.  It belongs
+    // to the BLE thread.
+    private class PeripheralLink {
+        final int id;
+        final BluetoothDevice device;
+        final GattOperationQueue operations;
+        BluetoothGatt gatt;
+        volatile BluetoothGattCharacteristic tx;
+        volatile BluetoothGattCharacteristic rx;
+        volatile int mtu = DEFAULT_MTU; // ATT MTU agreed with the peripheral
+        volatile int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT; // Write type used for its TX characteristic
+        volatile boolean ready; // Set up and reported through onConnected
+        int priority = -1; // Connection priority last requested, -1 before the first request
+        boolean boosted; // At high priority for a bulk transfer
+        boolean reconnecting; // Lost the link and trying to get it back
+        int reconnectAttempts; // Attempts since the link was last set up
+        boolean freshGatt = true; // gatt has no discovered services yet
+        byte[] databaseHash; // Peer's Database Hash when services were last discovered, null if it has none
+        volatile ConnectionTimeline timeline; // Setup of the current connection, or the one being made
+        int writeLength; // Size of the UART frame in flight, 0 if none is
+
+        // Device Information state.
+        BluetoothGattCharacteristic disManuf;
+        BluetoothGattCharacteristic disModel;
+        BluetoothGattCharacteristic disHWRev;
+        BluetoothGattCharacteristic disSWRev;
+        volatile boolean disAvailable;
+
+        // Drops back to the chosen profile once the link has stayed drained for BOOST_HOLD_MS.
+        final Runnable unboostRunnable = new Runnable() {
+            @Override
+            public void run() {
+                boosted = false;
+                applyPriority(PeripheralLink.this);
+            }
+        };
 
-    // Device Information state.
-    private BluetoothGattCharacteristic disManuf;
-    private BluetoothGattCharacteristic disModel;
-    private BluetoothGattCharacteristic disHWRev;
-    private BluetoothGattCharacteristic disSWRev;
-    private boolean disAvailable;
+        // Makes the next reconnect attempt once the backoff has passed.
+        final Runnable reconnectRunnable = new Runnable() {
+            @Override
+            public void run() {
+                reconnect(PeripheralLink.this);
+            }
+        };
 
+        // Abandons a reconnect attempt that hasn't set the link up in RECONNECT_ATTEMPT_MS.
+        final Runnable reconnectTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                reconnectTimedOut(PeripheralLink.this);
+            }
+        };
 
-    // Queues for characteristic write (synchronous)
-    private Queue<BluetoothGattCharacteristic> readQueue;
-    private Queue<WriteData> writeQueue = new ConcurrentLinkedQueue<WriteData>();
-    private boolean idle = true;
+        // Hands UART data to the operation queue one frame at a time.
+        final GattOperationQueue.DataSource txSource = new GattOperationQueue.DataSource() {
+            @Override
+            public boolean hasData() {
+                return tx != null && engine.hasPacket(device.getAddress(), mtu - ATT_HEADER_SIZE);
+            }
 
-    public class WriteData {
-        public BluetoothGatt gatt;
-        byte [] data;
+            @Override
+            public GattOperation nextDataOperation() {
+                return nextFrame(PeripheralLink.this);
+            }
+        };
 
-        public WriteData (BluetoothGatt gatt, byte [] data) {
-            this.gatt = gatt;
-            this.data = data;
+        PeripheralLink(int id, BluetoothDevice device) {
+            this.id = id;
+            this.device = device;
+            this.operations = new GattOperationQueue(bleHandler);
+            this.operations.setDataSource(txSource);
         }
     }
 
+    // Packets go out as each peripheral's operation queue pulls them from the engine, so all the
+    // engine needs from us is a kick when it has data, and a timer.
+    private final GattTransport transport = new GattTransport() {
+        @Override
+        public void setEndpoint(Endpoint endpoint) {
+            // The engine is the only endpoint, and the links call it directly.
+        }
+
+        @Override
+        public void requestSend(String peer) {
+            kick();
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            bleHandler.removeCallbacks(task);
+            bleHandler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            bleHandler.removeCallbacks(task);
+        }
+    };
+
+    // Hands the engine's received messages and TX buffer state to the callbacks.
+    private final UartEngine.Listener engineListener = new UartEngine.Listener() {
+        @Override
+        public void onReceive(String peer, byte[] data, int offset, int length) {
+            PeripheralLink link = links.get(peer);
+            if (link != null) {
+                deliver(BluetoothLeUart.this, link, data, offset, length);
+            }
+        }
+
+        @Override
+        public void onBackpressure() {
+            notifyOnBackpressure(BluetoothLeUart.this);
+        }
+
+        @Override
+        public void onWritable() {
+            notifyOnWritable(BluetoothLeUart.this);
+        }
+    };
+
     public BluetoothLeUart(Context context) {
         super();
         this.context = context;
         this.adapter = BluetoothAdapter.getDefaultAdapter();
-        this.gatt = null;
-        this.tx = null;
-        this.rx = null;
-        this.disManuf = null;
-        this.disModel = null;
-        this.disHWRev = null;
-        this.disSWRev = null;
-        this.disAvailable = false;
-        this.connectFirst = false;
-        this.writeInProgress = false;
-        this.readQueue = new ConcurrentLinkedQueue<BluetoothGattCharacteristic>();
+        this.connectFound = false;
+        this.writeWithoutResponse = false;
+        this.engine = new UartEngine(transport, engineListener);
+
+        HandlerThread handlerThread = new HandlerThread("BleThread");
+        handlerThread.start();
+        this.bleHandler = new Handler(handlerThread.getLooper(), this);
+    }
+
+    // Return the BluetoothGatt for a connected peripheral, or null.
+    public BluetoothGatt getGatt(BluetoothDevice device) {
+        PeripheralLink link = links.get(device.getAddress());
+        return (link == null) ? null : link.gatt;
+    }
+
+    // Return the queue all GATT operations on a peripheral's connection go through, or null if it
+    // isn't connected.  Operations of your own must be queued here too, or they will collide with
+    // the UART's.
+    public GattOperationQueue getOperationQueue(BluetoothDevice device) {
+        PeripheralLink link = links.get(device.getAddress());
+        return (link == null) ? null : link.operations;
+    }
+
+    // Return the ATT MTU currently in effect for a peripheral.
+    public int getMtu(BluetoothDevice device) {
+        PeripheralLink link = links.get(device.getAddress());
+        return (link == null) ? DEFAULT_MTU : link.mtu;
     }
 
-    // Return instance of BluetoothGatt.
-    public BluetoothGatt getGatt() {
-        return gatt;
+    // Connect to at most this many UART devices found by start() or connectFirstAvailable().
+    // Scanning stops once that many are connected.  Defaults to 1.
+    public void setMaxConnections(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("need at least one connection");
+        }
+        maxConnections = max;
+    }
+
+    // Enable or disable high-throughput streaming writes.  When enabled, frames are written with
+    // WRITE_TYPE_NO_RESPONSE so the stack hands each one to the controller without waiting for the
+    // peer's write response.  Falls back to acknowledged writes for any peripheral whose TX
+    // characteristic does not support PROPERTY_WRITE_NO_RESPONSE.
+    //
+    // Pacing is a window of one write, not several credits.  BluetoothGatt rejects a second write
+    // while one is outstanding, so the stack's onCharacteristicWrite is the only credit there is;
+    // without a response it comes back once the frame is buffered, not after a round trip, and
+    // the pipelining happens in the stack's own buffers below us.
+    public void setWriteWithoutResponse(boolean enable) {
+        writeWithoutResponse = enable;
+        for (PeripheralLink link : links.values()) {
+            BluetoothGattCharacteristic tx = link.tx;
+            if (tx != null) {
+                link.writeType = chooseWriteType(tx);
+            }
+        }
     }
 
-    // Return true if connected to UART device, false otherwise.
+    // Return true if frames to the peripheral are currently written without response.
+    public boolean isWritingWithoutResponse(BluetoothDevice device) {
+        PeripheralLink link = links.get(device.getAddress());
+        return link != null && link.writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    private int chooseWriteType(BluetoothGattCharacteristic characteristic) {
+        if (writeWithoutResponse) {
+            if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                return BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            }
+            Log.w("Central", "TX characteristic does not support write without response, using acknowledged writes");
+        }
+        return BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    }
+
+    // Return true if connected to at least one UART device, false otherwise.
     public boolean isConnected() {
-        return (tx != null && rx != null);
+        for (PeripheralLink link : links.values()) {
+            if (isConnected(link)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public String getDeviceInfo() {
-        if (tx == null || !disAvailable ) {
-            // Do nothing if there is no connection.
-            return "";
+    private boolean isConnected(PeripheralLink link) {
+        return (link.tx != null && link.rx != null);
+    }
+
+    public List<BluetoothDevice> getConnectedDevices() {
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+        for (PeripheralLink link : links.values()) {
+            if (link.ready) {
+                devices.add(link.device);
+            }
         }
+        return devices;
+    }
+
+    public String getDeviceInfo() {
         StringBuilder sb = new StringBuilder();
-        sb.append("Manufacturer : " + disManuf.getStringValue(0) + "\n");
-        sb.append("Model        : " + disModel.getStringValue(0) + "\n");
-        sb.append("Firmware     : " + disSWRev.getStringValue(0) + "\n");
+        for (PeripheralLink link : links.values()) {
+            if (link.tx == null || !link.disAvailable) {
+                // Skip peripherals that aren't connected or haven't been read yet.
+                continue;
+            }
+            if (links.size() > 1) {
+                sb.append("Device       : " + link.device.getAddress() + "\n");
+            }
+            sb.append("Manufacturer : " + link.disManuf.getStringValue(0) + "\n");
+            sb.append("Model        : " + link.disModel.getStringValue(0) + "\n");
+            sb.append("Firmware     : " + link.disSWRev.getStringValue(0) + "\n");
+        }
         return sb.toString();
     };
 
-    public boolean deviceInfoAvailable() { return disAvailable; }
+    public boolean deviceInfoAvailable() {
+        for (PeripheralLink link : links.values()) {
+            if (link.disAvailable) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-    // Send data to connected UART device.
+    // Hold back a partial frame for up to the given number of microseconds so that following
+    // sends can be packed into the same frame.  0 (the default) sends whatever is pending as soon
+    // as the link is free.
+    public void setFlushDeadline(long micros) {
+        engine.setFlushDeadline(micros);
+    }
 
-    public void doWrite (WriteData writeData) {
-        Log.i("BlueNet", "writing " + new String(writeData.data));
-        BluetoothGattService service = writeData.gatt.getService(UART_UUID);
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(TX_UUID);
-        characteristic.setValue(writeData.data);
-        idle = false;
+    // Take the peripheral's next TX write from the engine, packed as full as the MTU allows.
+    // Returns null if there is nothing to send, or a partial frame is being held back until the
+    // flush deadline.
+    private GattOperation nextFrame(final PeripheralLink link) {
+        BluetoothGattCharacteristic tx = link.tx;
+        if (tx == null) {
+            return null;
+        }
+        final String address = link.device.getAddress();
+        int frameSize = link.mtu - ATT_HEADER_SIZE;
+        int pending = engine.getQueuedBytes(address);
+        byte[] frame = engine.nextPacket(address, frameSize);
+        if (frame == null) {
+            return null;
+        }
+        link.writeLength = frame.length;
+        updateBoost(link, pending, frameSize);
+        UartTrace.trace(UartTrace.DEBUG, UartTrace.WRITE, address, frame.length);
+        GattOperation op = GattOperation.write(tx, frame, link.writeType, GattOperation.PRIORITY_DATA);
+        // Report the frame however the write ends: its callback, a timeout, the stack refusing it,
+        // or the link going away.
+        op.getFuture().setListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(int status) {
+                link.writeLength = 0;
+                engine.onPacketSent(address, status == BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return op;
+    }
+
+    public void setConnectionProfile(UartBase.ConnectionProfile profile) {
+        connectionProfile = profile;
+        bleHandler.sendEmptyMessage(MSG_PROFILE);
+    }
+
+    public void setBulkBoostEnabled(boolean enable) {
+        bulkBoost = enable;
+        bleHandler.sendEmptyMessage(MSG_PROFILE);
+    }
 
-        writeData.gatt.writeCharacteristic(characteristic);
+    private static int priorityFor(UartBase.ConnectionProfile profile) {
+        switch (profile) {
+            case LOW_LATENCY:
+                return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+            case LOW_POWER:
+                return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+            default:
+                return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        }
+    }
+
+    // Ask for the connection priority the link should have now.  Each request costs a connection
+    // parameter update, so nothing is sent if it wouldn't change anything.
+    private void applyPriority(PeripheralLink link) {
+        if (!bulkBoost && link.boosted) {
+            bleHandler.removeCallbacks(link.unboostRunnable);
+            link.boosted = false;
+        }
+        int priority = link.boosted ? BluetoothGatt.CONNECTION_PRIORITY_HIGH : priorityFor(connectionProfile);
+        if (priority != link.priority && link.gatt != null && link.gatt.requestConnectionPriority(priority)) {
+            link.priority = priority;
+        }
+    }
+
+    // Set up a newly connected link: its connection priority, and the 2M PHY if both ends have it.
+    private void applyConnectionProfile(PeripheralLink link) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && adapter.isLe2MPhySupported()) {
+            link.gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+        applyPriority(link);
+    }
+
+    // Boost the link while a bulk transfer is queued for it.  pending is what was queued before
+    // this frame was taken.  Once the ring is empty the link drops back after BOOST_HOLD_MS, so a
+    // burst of sends doesn't flap the connection parameters.
+    private void updateBoost(PeripheralLink link, int pending, int frameSize) {
+        if (!bulkBoost) {
+            return;
+        }
+        if (pending >= BULK_FRAMES * frameSize) {
+            bleHandler.removeCallbacks(link.unboostRunnable);
+            if (!link.boosted) {
+                link.boosted = true;
+                applyPriority(link);
+            }
+        } else if (link.boosted && engine.getQueuedBytes(link.device.getAddress()) == 0) {
+            bleHandler.removeCallbacks(link.unboostRunnable);
+            bleHandler.postDelayed(link.unboostRunnable, BOOST_HOLD_MS);
+        }
     }
 
-    // Send data to connected UART device.
+    // Send data to every connected UART device.  Each peripheral's data is queued in its own TX
+    // ring and leaves in frames of up to (MTU - 3) bytes, so small sends are coalesced while a
+    // write is in flight.  Data that doesn't fit in the rings is handled according to the
+    // overflow policy.
     public void send(byte[] data) {
-        if (data == null || data.length == 0) {
-            // Do nothing if there is no connection or message to send.
+        engine.send(null, data);
+    }
+
+    // Send data to one connected UART device only.
+    public void send(BluetoothDevice device, byte[] data) {
+        PeripheralLink link = links.get(device.getAddress());
+        if (link == null) {
+            Log.w("BlueNet", "Not connected to " + device.getAddress() + ", dropped send");
             return;
         }
+        engine.send(device.getAddress(), data);
+    }
+
+    public int offer(byte[] data, int offset, int length) {
+        return engine.offer(data, offset, length);
+    }
+
+    public void setTxLimits(int capacity, int lowWatermark, int highWatermark, OverflowPolicy policy) {
+        engine.setTxLimits(capacity, lowWatermark, highWatermark, policy);
+    }
+
+    public boolean awaitWritable(long timeoutMillis) throws InterruptedException {
+        return engine.awaitWritable(timeoutMillis);
+    }
+
+    public void setFrameCodec(FrameCodec codec) {
+        engine.setFrameCodec(codec);
+    }
+
+    // Compression is offered to each peripheral once it is connected.
+    public void setCompressionEnabled(boolean enable) {
+        engine.setCompressionEnabled(enable);
+    }
+
+    public void setReliableEnabled(boolean enable) {
+        engine.setReliableEnabled(enable);
+    }
 
-        //could expand to communicate to other periphs
-        writeQueue.offer(new WriteData(gatt, data));
+    // Return true if send() is compressing messages for the peripheral.
+    public boolean isCompressing(BluetoothDevice device) {
+        return engine.isCompressing(device.getAddress());
+    }
 
-        if (idle && !writeQueue.isEmpty()) {
-            WriteData writeData = writeQueue.poll();
-            doWrite(writeData);
+    public synchronized UartInputStream getInputStream() {
+        if (inputStream == null) {
+            inputStream = new UartInputStream(RX_STREAM_CAPACITY);
         }
+        return inputStream;
     }
 
-    // Send data to connected UART device.
+    public synchronized UartOutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new UartOutputStream(this);
+        }
+        return outputStream;
+    }
+
+    // Send data to every connected UART device.
     public void send(String data) {
         if (data != null && !data.isEmpty()) {
             send(data.getBytes(Charset.forName("UTF-8")));
@@ -160,20 +546,193 @@ public class BluetoothLeUart extends BluetoothGattCallback implements BluetoothA
         callbacks.remove(callback);
     }
 
-    // Disconnect to a device if currently connected.
+    // Get the BLE thread to send pending UART data, unless it's already been asked to.
+    private void kick() {
+        if (!bleHandler.hasMessages(MSG_KICK)) {
+            bleHandler.sendEmptyMessage(MSG_KICK);
+        }
+    }
+
+    // Connect to a UART device, in addition to any already connected.
+    public void connect(BluetoothDevice device) {
+        bleHandler.obtainMessage(MSG_CONNECT, device).sendToTarget();
+    }
+
+    // Connect to the device, continuing the timeline of its discovery if the scan found it.
+    private void doConnect(BluetoothDevice device, ConnectionTimeline timeline) {
+        if (links.containsKey(device.getAddress())) {
+            return;
+        }
+        PeripheralLink link = new PeripheralLink(nextLinkId++, device);
+        link.timeline = timeline;
+        links.put(device.getAddress(), link);
+        linksById.put(link.id, link);
+        engine.openPeer(device.getAddress());
+        setupLatency.mark(timeline, ConnectionTimeline.Phase.CONNECT_REQUESTED);
+        link.gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+    }
+
+    // When each phase of the connection to the device's setup happened, or null if there is no
+    // connection to it.
+    public ConnectionTimeline getConnectionTimeline(BluetoothDevice device) {
+        PeripheralLink link = links.get(device.getAddress());
+        return (link == null) ? null : link.timeline.snapshot();
+    }
+
+    public SetupLatency getSetupLatency() {
+        return setupLatency;
+    }
+
+    public UartMetrics getMetrics() {
+        return engine.getMetrics();
+    }
+
+    // Disconnect from every connected device.
     public void disconnect() {
-        if (gatt != null) {
-            gatt.disconnect();
+        bleHandler.obtainMessage(MSG_DISCONNECT, null).sendToTarget();
+    }
+
+    // Disconnect from one device.
+    public void disconnect(BluetoothDevice device) {
+        bleHandler.obtainMessage(MSG_DISCONNECT, device).sendToTarget();
+    }
+
+    private void doDisconnect(BluetoothDevice device) {
+        List<PeripheralLink> closing = new ArrayList<PeripheralLink>();
+        for (PeripheralLink link : links.values()) {
+            if (device == null || device.getAddress().equals(link.device.getAddress())) {
+                closing.add(link);
+            }
         }
-        gatt = null;
-        tx = null;
-        rx = null;
+        for (PeripheralLink link : closing) {
+            if (link.gatt != null) {
+                link.gatt.disconnect();
+            }
+            // Closing the connection means its own disconnect callback never comes.
+            closeLink(link);
+        }
+    }
+
+    // Forget a peripheral: drop its pending operations and data and release its connection.
+    private void closeLink(PeripheralLink link) {
+        links.remove(link.device.getAddress());
+        linksById.remove(link.id);
+        engine.closePeer(link.device.getAddress());
+        bleHandler.removeCallbacks(link.unboostRunnable);
+        bleHandler.removeCallbacks(link.reconnectRunnable);
+        bleHandler.removeCallbacks(link.reconnectTimeoutRunnable);
+        link.operations.clear();
+        link.operations.setGatt(null);
+        if (link.gatt != null) {
+            link.gatt.close();
+        }
+        link.tx = null;
+        link.rx = null;
+        if (link.ready) {
+            link.ready = false;
+            notifyOnDisconnected(this, link.device);
+        }
+    }
+
+    // Reconnect on our own when a link drops without disconnect() being called.  Queued data is
+    // kept and sent once the link is back; a peripheral that doesn't come back within
+    // MAX_RECONNECT_ATTEMPTS is reported through onConnectFailed.  On by default.
+    public void setAutoReconnect(boolean enable) {
+        autoReconnect = enable;
+    }
+
+    // The link dropped.  Keep the peripheral, its TX ring and, while the connection object lives,
+    // its discovered services, and start getting it back.
+    private void linkLost(PeripheralLink link) {
+        boolean wasReady = link.ready;
+        link.ready = false;
+        link.reconnecting = true;
+        bleHandler.removeCallbacks(link.unboostRunnable);
+        bleHandler.removeCallbacks(link.reconnectTimeoutRunnable);
+        link.operations.clear();
+        link.operations.setGatt(null);
+        link.writeLength = 0;
+        link.tx = null;
+        link.rx = null;
+        link.mtu = DEFAULT_MTU;
+        link.priority = -1;
+        link.boosted = false;
+
+        // The peer starts the next connection knowing nothing of this one.
+        engine.resetPeer(link.device.getAddress());
+        link.timeline = new ConnectionTimeline();
+
+        if (wasReady) {
+            notifyOnDisconnected(this, link.device);
+        }
+        scheduleReconnect(link);
+    }
+
+    // The first attempt reconnects the existing connection object straight away, in the
+    // background, so its discovered services survive.  Later ones back off exponentially with
+    // jitter, so a crowd of centrals doesn't retry in lock step, and start over with a fresh
+    // connection.  A background connect waits for the peer indefinitely, so each attempt gets
+    // RECONNECT_ATTEMPT_MS to set the link up before the next one; after MAX_RECONNECT_ATTEMPTS
+    // the peripheral is given up and reported as a failed connect.
+    private void scheduleReconnect(PeripheralLink link) {
+        int attempt = link.reconnectAttempts++;
+        if (attempt >= MAX_RECONNECT_ATTEMPTS) {
+            Log.w("Central", "Giving up on " + link.device.getAddress() + " after " + attempt + " attempts");
+            closeLink(link);
+            notifyOnConnectFailed(this, link.device);
+            return;
+        }
+        if (attempt == 0 && link.gatt != null && link.gatt.connect()) {
+            setupLatency.mark(link.timeline, ConnectionTimeline.Phase.CONNECT_REQUESTED);
+            bleHandler.postDelayed(link.reconnectTimeoutRunnable, RECONNECT_ATTEMPT_MS);
+            Log.i("Central", "Reconnecting to " + link.device.getAddress());
+            return;
+        }
+        long backoff = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(Math.max(attempt - 1, 0), 16));
+        long delay = backoff / 2 + (long) (reconnectJitter.nextDouble() * (backoff / 2));
+        Log.i("Central", "Reconnecting to " + link.device.getAddress() + " in " + delay + " ms");
+        bleHandler.postDelayed(link.reconnectRunnable, delay);
+    }
+
+    private void reconnect(PeripheralLink link) {
+        if (links.get(link.device.getAddress()) != link) {
+            // Disconnected in the meantime.
+            return;
+        }
+        if (link.gatt != null) {
+            link.gatt.close();
+        }
+        link.freshGatt = true;
+        setupLatency.mark(link.timeline, ConnectionTimeline.Phase.CONNECT_REQUESTED);
+        link.gatt = link.device.connectGatt(context, true, this, BluetoothDevice.TRANSPORT_LE);
+        bleHandler.postDelayed(link.reconnectTimeoutRunnable, RECONNECT_ATTEMPT_MS);
+    }
+
+    // The attempt in progress didn't get the link set up in time.  Drop its connection object,
+    // which ends its callbacks, and back off before the next.
+    private void reconnectTimedOut(PeripheralLink link) {
+        Log.w("Central", "Reconnect to " + link.device.getAddress() + " timed out");
+        link.operations.clear();
+        link.operations.setGatt(null);
+        link.writeLength = 0;
+        link.tx = null;
+        link.rx = null;
+        link.mtu = DEFAULT_MTU;
+        if (link.gatt != null) {
+            link.gatt.disconnect();
+            link.gatt.close();
+            link.gatt = null;
+        }
+        engine.resetPeer(link.device.getAddress());
+        link.timeline = new ConnectionTimeline();
+        scheduleReconnect(link);
     }
 
     // Stop any in progress UART device scan.
-    public void stopScan() {
-        if (adapter != null) {
-            adapter.stopLeScan(this);
+    public synchronized void stopScan() {
+        if (scanner != null) {
+            scanner.stopScan(scanCallback);
+            scanner = null;
         }
     }
 
@@ -186,225 +745,526 @@ public class BluetoothLeUart extends BluetoothGattCallback implements BluetoothA
     }
 
     // Start scanning for BLE UART devices.  Registered callback's onDeviceFound method will be called
-    // when devices are found during scanning.
-    public void startScan() {
-        if (adapter != null) {
-            adapter.startLeScan(this);
+    // when devices are found during scanning.  Where the controller can filter advertisements itself
+    // we scan flat out and only hear from UART devices; otherwise every advertisement comes up to
+    // us and is checked against the UART UUID without allocating.
+    public synchronized void startScan() {
+        if (adapter == null || scanner != null) {
+            return;
+        }
+        scanner = adapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            // Bluetooth is off.
+            Log.w("Central", "No LE scanner available");
+            return;
+        }
+
+        scanStartNanos = System.nanoTime();
+        scanUuid = AdvertisementParser.toAdvertisedBytes(UART_UUID);
+        scanFilterOffloaded = adapter.isOffloadedFilteringSupported();
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(scanFilterOffloaded ? ScanSettings.SCAN_MODE_LOW_LATENCY : ScanSettings.SCAN_MODE_BALANCED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && adapter.isLeExtendedAdvertisingSupported()) {
+            // Also hear peripherals using extended advertising, on any PHY we support.
+            settings.setLegacy(false).setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
+        }
+        if (scanFilterOffloaded) {
+            List<ScanFilter> filters = Collections.singletonList(
+                    new ScanFilter.Builder().setServiceUuid(new ParcelUuid(UART_UUID)).build());
+            scanner.startScan(filters, settings.build(), scanCallback);
+        } else {
+            scanner.startScan(null, settings.build(), scanCallback);
         }
     }
 
-    // Connect to the first available UART device.
+    // Scan results arrive on a binder thread.  Devices without the UART service are dropped here
+    // rather than posting every advertisement.
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onAdvertisement(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onAdvertisement(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w("Central", "Scan failed: " + errorCode);
+            synchronized (BluetoothLeUart.this) {
+                scanner = null;
+            }
+        }
+    };
+
+    private void onAdvertisement(ScanResult result) {
+        if (!scanFilterOffloaded) {
+            ScanRecord record = result.getScanRecord();
+            if (record == null || !AdvertisementParser.advertisesService(record.getBytes(), scanUuid)) {
+                return;
+            }
+        }
+        bleHandler.obtainMessage(MSG_DEVICE_FOUND, result.getDevice()).sendToTarget();
+    }
+
+    // Connect to the first available UART devices, up to the maximum number of connections.
     public void connectFirstAvailable() {
         // Disconnect to any connected device.
         disconnect();
         // Stop any in progress device scan.
         stopScan();
-        // Start scan and connect to first available device.
-        connectFirst = true;
+        // Start scan and connect to the first available devices.
+        connectFound = true;
         startScan();
     }
 
-    // Handlers for BluetoothGatt and LeScan events.
+    // Find the link a GATT callback belongs to.  Returns null for a connection we've let go of.
+    private PeripheralLink linkFor(BluetoothGatt gatt) {
+        return links.get(gatt.getDevice().getAddress());
+    }
+
+    // Handlers for BluetoothGatt and LeScan events.  These arrive on binder threads and only post
+    // to the BLE thread, which does the actual work.
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
         super.onConnectionStateChange(gatt, status, newState);
+        bleHandler.obtainMessage(MSG_CONNECTION_STATE, status, newState, gatt).sendToTarget();
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        super.onServicesDiscovered(gatt, status);
+        bleHandler.obtainMessage(MSG_SERVICES_DISCOVERED, status, 0, gatt).sendToTarget();
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        super.onDescriptorWrite(gatt, descriptor, status);
+        bleHandler.obtainMessage(MSG_DESCRIPTOR_WRITE, status, 0, gatt).sendToTarget();
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        super.onMtuChanged(gatt, mtu, status);
+        bleHandler.obtainMessage(MSG_MTU_CHANGED, mtu, status, gatt).sendToTarget();
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+        bleHandler.obtainMessage(MSG_PHY_UPDATE, txPhy, status, gatt).sendToTarget();
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        super.onCharacteristicChanged(gatt, characteristic);
+        PeripheralLink link = linkFor(gatt);
+        if (link != null) {
+            // The stack gives the characteristic a new array for every notification, so the one we
+            // post here won't be overwritten by the next.  The link goes by id, obj is taken.
+            bleHandler.obtainMessage(MSG_RECEIVE, link.id, 0, characteristic.getValue()).sendToTarget();
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        super.onCharacteristicRead(gatt, characteristic, status);
+        bleHandler.obtainMessage(MSG_CHARACTERISTIC_READ, status, 0, gatt).sendToTarget();
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        super.onCharacteristicWrite(gatt, characteristic, status);
+        bleHandler.obtainMessage(MSG_CHARACTERISTIC_WRITE, status, 0, gatt).sendToTarget();
+    }
+
+    @Override
+    public boolean handleMessage(Message message) {
+        PeripheralLink link = null;
+        if (message.obj instanceof BluetoothGatt) {
+            // Drop callbacks from connections that have since been closed or replaced.
+            BluetoothGatt gatt = (BluetoothGatt) message.obj;
+            link = linkFor(gatt);
+            if (link == null || link.gatt != gatt) {
+                return true;
+            }
+        }
+
+        switch (message.what) {
+            case MSG_CONNECTION_STATE:
+                doConnectionStateChange(link, message.arg1, message.arg2);
+                break;
+            case MSG_SERVICES_DISCOVERED:
+                doServicesDiscovered(link, message.arg1);
+                break;
+            case MSG_DESCRIPTOR_WRITE:
+                doDescriptorWrite(link, message.arg1);
+                break;
+            case MSG_MTU_CHANGED:
+                doMtuChanged(link, message.arg1, message.arg2);
+                break;
+            case MSG_RECEIVE:
+                link = linksById.get(message.arg1);
+                if (link != null) {
+                    notifyOnReceive(link, (byte[]) message.obj);
+                }
+                break;
+            case MSG_CHARACTERISTIC_READ:
+                doCharacteristicRead(link, message.arg1);
+                break;
+            case MSG_CHARACTERISTIC_WRITE:
+                doCharacteristicWrite(link, message.arg1);
+                break;
+            case MSG_DEVICE_FOUND:
+                doDeviceFound((BluetoothDevice) message.obj);
+                break;
+            case MSG_KICK:
+                for (PeripheralLink each : links.values()) {
+                    each.operations.kick();
+                }
+                break;
+            case MSG_DISCONNECT:
+                doDisconnect((BluetoothDevice) message.obj);
+                break;
+            case MSG_CONNECT:
+                doConnect((BluetoothDevice) message.obj, new ConnectionTimeline());
+                break;
+            case MSG_PROFILE:
+                for (PeripheralLink each : links.values()) {
+                    if (each.ready) {
+                        applyPriority(each);
+                    }
+                }
+                break;
+            case MSG_PHY_UPDATE:
+                if (message.arg2 == BluetoothGatt.GATT_SUCCESS) {
+                    Log.i("Central", link.device.getAddress() + " TX PHY is now " + message.arg1);
+                } else {
+                    Log.w("Central", link.device.getAddress() + " PHY update failed: " + message.arg2);
+                }
+                break;
+        }
+        return true;
+    }
+
+    private void doConnectionStateChange(PeripheralLink link, int status, int newState) {
         if (newState == BluetoothGatt.STATE_CONNECTED) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                // Connected to device, start discovering services.
-                if (!gatt.discoverServices()) {
-                    // Error starting service discovery.
-                    Log.e("", "error discovering services!");
-                    connectFailure();
+                setupLatency.mark(link.timeline, ConnectionTimeline.Phase.CONNECTED);
+                link.operations.setGatt(link.gatt);
+                if (link.reconnecting && !link.freshGatt && link.databaseHash != null) {
+                    // Back on the same connection object; its services are still good if the
+                    // peer's attribute table hasn't changed.
+                    checkDatabaseHash(link);
+                } else {
+                    discoverServices(link);
                 }
             }
             else {
                 // Error connecting to device.
-                connectFailure();
+                connectFailure(link, false);
             }
         }
         else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-            // Disconnected, notify callbacks of disconnection.
-            rx = null;
-            tx = null;
-            notifyOnDisconnected(this);
+            // Disconnected.  No callbacks are coming for operations in flight, so they are dropped
+            // with the connection.  Get back a link that was up, or release it and notify callbacks.
+            // One that was never set up is a failed connect (often status 133), not a disconnect.
+            if (autoReconnect && (link.ready || link.reconnecting)) {
+                linkLost(link);
+            } else if (!link.ready) {
+                connectFailure(link, false);
+            } else {
+                closeLink(link);
+            }
         }
     }
 
-    @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        super.onServicesDiscovered(gatt, status);
-        // Notify connection failure if service discovery failed.
-        if (status == BluetoothGatt.GATT_FAILURE) {
-            connectFailure();
+    private void discoverServices(PeripheralLink link) {
+        // Connected to device, start discovering services.
+        if (!link.gatt.discoverServices()) {
+            // Error starting service discovery.
+            Log.e("", "error discovering services!");
+            connectFailure(link, false);
+        }
+    }
+
+    // Read the peer's Database Hash and skip service discovery if it matches the one we saw when
+    // we discovered the services this connection object holds.
+    private void checkDatabaseHash(final PeripheralLink link) {
+        BluetoothGattService service = link.gatt.getService(GATT_SERVICE_UUID);
+        final BluetoothGattCharacteristic hash =
+                (service == null) ? null : service.getCharacteristic(DATABASE_HASH_UUID);
+        if (hash == null) {
+            discoverServices(link);
+            return;
+        }
+        link.operations.enqueue(GattOperation.read(hash, GattOperation.PRIORITY_SETUP))
+                .setListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(int status) {
+                if (status == GattOperation.STATUS_CANCELLED) {
+                    return;
+                }
+                if (status == BluetoothGatt.GATT_SUCCESS && Arrays.equals(hash.getValue(), link.databaseHash)) {
+                    Log.i("Central", link.device.getAddress() + " unchanged, reusing its services");
+                    setupLatency.mark(link.timeline, ConnectionTimeline.Phase.SERVICES_DISCOVERED);
+                    setupLink(link);
+                } else {
+                    discoverServices(link);
+                }
+            }
+        });
+    }
+
+    private void doServicesDiscovered(final PeripheralLink link, int status) {
+        BluetoothGatt gatt = link.gatt;
+        // Notify connection failure if service discovery failed.  A peer without the UART
+        // service won't grow one by trying again.
+        if (status == BluetoothGatt.GATT_FAILURE || gatt.getService(UART_UUID) == null) {
+            connectFailure(link, status == BluetoothGatt.GATT_SUCCESS);
             Log.e("", "onServicesDiscovered gatt failure");
             return;
         } else {
             Log.e("", "onServicesDiscovered gatt success");
         }
+        link.freshGatt = false;
+        setupLatency.mark(link.timeline, ConnectionTimeline.Phase.SERVICES_DISCOVERED);
 
+        if (!setupLink(link)) {
+            return;
+        }
 
-        // Save reference to each UART characteristic.
-        tx = gatt.getService(UART_UUID).getCharacteristic(TX_UUID);
-        rx = gatt.getService(UART_UUID).getCharacteristic(RX_UUID);
+        // Remember the Database Hash, if the peer has one, so a reconnect can tell whether these
+        // services are still good.
+        link.databaseHash = null;
+        BluetoothGattService gattService = gatt.getService(GATT_SERVICE_UUID);
+        final BluetoothGattCharacteristic hash =
+                (gattService == null) ? null : gattService.getCharacteristic(DATABASE_HASH_UUID);
+        if (hash != null) {
+            link.operations.enqueue(GattOperation.read(hash, GattOperation.PRIORITY_SETUP))
+                    .setListener(new GattFuture.Listener() {
+                @Override
+                public void onComplete(int status) {
+                    byte[] value = hash.getValue();
+                    if (status == BluetoothGatt.GATT_SUCCESS && value != null) {
+                        link.databaseHash = value.clone();
+                    }
+                }
+            });
+        }
 
         // Save reference to each DIS characteristic.
         if (null != gatt.getService(DIS_UUID)) {
-            disManuf = gatt.getService(DIS_UUID).getCharacteristic(DIS_MANUF_UUID);
-            disModel = gatt.getService(DIS_UUID).getCharacteristic(DIS_MODEL_UUID);
-            disHWRev = gatt.getService(DIS_UUID).getCharacteristic(DIS_HWREV_UUID);
-            disSWRev = gatt.getService(DIS_UUID).getCharacteristic(DIS_SWREV_UUID);
-
-            // Add device information characteristics to the read queue
-            // These need to be queued because we have to wait for the response to the first
-            // read request before a second one can be processed (which makes you wonder why they
-            // implemented this with async logic to begin with???)
-            readQueue.offer(disManuf);
-            readQueue.offer(disModel);
-            readQueue.offer(disHWRev);
-            readQueue.offer(disSWRev);
-
-            // Request a dummy read to get the device information queue going
-            gatt.readCharacteristic(disModel);
+            link.disManuf = gatt.getService(DIS_UUID).getCharacteristic(DIS_MANUF_UUID);
+            link.disModel = gatt.getService(DIS_UUID).getCharacteristic(DIS_MODEL_UUID);
+            link.disHWRev = gatt.getService(DIS_UUID).getCharacteristic(DIS_HWREV_UUID);
+            link.disSWRev = gatt.getService(DIS_UUID).getCharacteristic(DIS_SWREV_UUID);
+
+            // Read the device information once the link is set up, behind any UART data.
+            link.operations.enqueue(GattOperation.read(link.disManuf, GattOperation.PRIORITY_INFO));
+            link.operations.enqueue(GattOperation.read(link.disModel, GattOperation.PRIORITY_INFO));
+            link.operations.enqueue(GattOperation.read(link.disHWRev, GattOperation.PRIORITY_INFO));
+            link.operations.enqueue(GattOperation.read(link.disSWRev, GattOperation.PRIORITY_INFO))
+                    .setListener(new GattFuture.Listener() {
+                @Override
+                public void onComplete(int status) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        link.disAvailable = true;
+                        notifyOnDeviceInfoAvailable();
+                    }
+                }
+            });
         } else {
             Log.w("Central", "null service!");
         }
+    }
 
-
+    // Find the UART characteristics on a connection with discovered services, turn on
+    // notifications and ask for a larger MTU.  Returns false, after failing the connection, if the
+    // peer isn't usable.
+    private boolean setupLink(final PeripheralLink link) {
+        BluetoothGatt gatt = link.gatt;
+        // Save reference to each UART characteristic.
+        link.tx = gatt.getService(UART_UUID).getCharacteristic(TX_UUID);
+        link.rx = gatt.getService(UART_UUID).getCharacteristic(RX_UUID);
+        link.writeType = chooseWriteType(link.tx);
 
         // Setup notifications on RX characteristic changes (i.e. data received).
-        // First call setCharacteristicNotification to enable notification.
-        if (!gatt.setCharacteristicNotification(rx, true)) {
+        // First call setCharacteristicNotification to enable notification.  This only changes local
+        // state, so it doesn't need to go through the operation queue.
+        if (!gatt.setCharacteristicNotification(link.rx, true)) {
             // Stop if the characteristic notification setup failed.
-            connectFailure();
+            connectFailure(link, false);
             Log.e("", "onServicesDiscovered notification setup failed");
-            return;
+            return false;
         }
         // Next update the RX characteristic's client descriptor to enable notifications.
-        BluetoothGattDescriptor desc = rx.getDescriptor(CLIENT_UUID);
+        BluetoothGattDescriptor desc = link.rx.getDescriptor(CLIENT_UUID);
         if (desc == null) {
             // Stop if the RX characteristic has no client descriptor.
-            connectFailure();
+            connectFailure(link, true);
             Log.e("", "onServicesDiscovered no client descriptor");
-            return;
-        }
-        desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        if (!gatt.writeDescriptor(desc)) {
-            // Stop if the client descriptor could not be written.
-            connectFailure();
-            Log.e("", "onServicesDiscovered descriptor could not be written");
-            return;
+            return false;
         }
-        // Notify of connection completion.
-        notifyOnConnected(this);
+
+        // Connection setup is two round trips, run back to back ahead of anything else: the
+        // descriptor write, then a request for a larger MTU so send() can use bigger frames.
+        link.operations.enqueue(GattOperation.writeDescriptor(desc, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE,
+                GattOperation.PRIORITY_SETUP)).setListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    setupLatency.mark(link.timeline, ConnectionTimeline.Phase.NOTIFICATIONS_ENABLED);
+                } else if (status != GattOperation.STATUS_CANCELLED) {
+                    // Stop if the client descriptor could not be written.
+                    Log.e("", "onServicesDiscovered descriptor could not be written");
+                    connectFailure(link, false);
+                }
+            }
+        });
+        link.operations.enqueue(GattOperation.requestMtu(REQUESTED_MTU, GattOperation.PRIORITY_SETUP))
+                .setListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(int status) {
+                // Notify of connection completion, whether or not the MTU grew.
+                if (status != GattOperation.STATUS_CANCELLED && isConnected(link)) {
+                    link.ready = true;
+                    link.reconnecting = false;
+                    link.reconnectAttempts = 0;
+                    bleHandler.removeCallbacks(link.reconnectTimeoutRunnable);
+                    applyConnectionProfile(link);
+                    engine.offerCompression(link.device.getAddress());
+                    notifyOnConnected(BluetoothLeUart.this, link.device);
+                }
+            }
+        });
+        return true;
     }
 
-    @Override
-    public void onDescriptorWrite(BluetoothGatt gatt,
-                                  BluetoothGattDescriptor descriptor, int status) {
+    private void doDescriptorWrite(PeripheralLink link, int status) {
         if (status == BluetoothGatt.GATT_SUCCESS) {
             Log.w("Central", "Descriptor written!");
         } else {
             Log.w("Central", "Descriptor NOT written!");
         }
+        link.operations.onComplete(GattOperation.TYPE_WRITE_DESCRIPTOR, status);
     }
 
-    @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        super.onCharacteristicChanged(gatt, characteristic);
-        notifyOnReceive(this, characteristic);
-    }
-
-    @Override
-    public void onCharacteristicRead (BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        super.onCharacteristicRead(gatt, characteristic, status);
-
+    private void doMtuChanged(PeripheralLink link, int mtu, int status) {
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            //Log.w("DIS", characteristic.getStringValue(0));
-            // Check if there is anything left in the queue
-            BluetoothGattCharacteristic nextRequest = readQueue.poll();
-            if(nextRequest != null){
-                // Send a read request for the next item in the queue
-                gatt.readCharacteristic(nextRequest);
-            }
-            else {
-                // We've reached the end of the queue
-                disAvailable = true;
-                notifyOnDeviceInfoAvailable();
-            }
-        }
-        else {
-            Log.w("DIS", "Failed reading characteristic " + characteristic.getUuid().toString());
+            Log.i("Central", link.device.getAddress() + " MTU changed to " + mtu);
+            link.mtu = mtu;
+        } else {
+            Log.w("Central", link.device.getAddress() + " MTU change failed, staying at " + link.mtu);
         }
+        link.operations.onComplete(GattOperation.TYPE_REQUEST_MTU, status);
     }
 
-    @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        super.onCharacteristicWrite(gatt, characteristic, status);
+    private void doCharacteristicRead(PeripheralLink link, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w("DIS", "Failed reading characteristic from " + link.device.getAddress());
+        }
+        link.operations.onComplete(GattOperation.TYPE_READ, status);
+    }
 
+    private void doCharacteristicWrite(PeripheralLink link, int status) {
+        // For WRITE_TYPE_NO_RESPONSE this fires as soon as the stack has buffered the frame.  It
+        // is the one credit Android gives us (see setWriteWithoutResponse), and lets the next
+        // frame go out.
+        UartTrace.trace((status == BluetoothGatt.GATT_SUCCESS) ? UartTrace.DEBUG : UartTrace.WARN,
+                UartTrace.WRITE_DONE, link.device.getAddress(), link.writeLength, status);
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            Log.d("BlueNet","Characteristic write successful");
-            WriteData writeData = writeQueue.poll();
-
-            if (null == writeData) { //empty!
-                idle = true;
-            } else {
-                doWrite(writeData);
-            }
-
-        } else {
-            Log.d("BlueNet","Characteristic write FAILED");
+            setupLatency.mark(link.timeline, ConnectionTimeline.Phase.FIRST_BYTE);
         }
-
+        // The write is finished either way; completing it reports the frame to the engine and
+        // moves on to the next operation.
+        link.operations.onComplete(GattOperation.TYPE_WRITE, status);
     }
 
-    @Override
-    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-        // Stop if the device doesn't have the UART service.
-        if (!parseUUIDs(scanRecord).contains(UART_UUID)) {
-            return;
-        }
+    private void doDeviceFound(BluetoothDevice device) {
         // Notify registered callbacks of found device.
         notifyOnDeviceFound(device);
-        // Connect to first found device if required.
-        if (connectFirst) {
-            // Stop scanning for devices.
-            stopScan();
-            // Prevent connections to future found devices.
-            connectFirst = false;
-            // Connect to device.
-            gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+        // Connect to found devices until we have as many as we want.
+        if (connectFound && !links.containsKey(device.getAddress())) {
+            ConnectionTimeline timeline = new ConnectionTimeline();
+            timeline.mark(ConnectionTimeline.Phase.SCAN_STARTED, scanStartNanos);
+            setupLatency.mark(timeline, ConnectionTimeline.Phase.ADVERTISEMENT_SEEN);
+            doConnect(device, timeline);
+            if (links.size() >= maxConnections) {
+                // Stop scanning for devices and prevent connections to future found devices.
+                stopScan();
+                connectFound = false;
+            }
         }
     }
 
-    // Private functions to simplify the notification of all callbacks of a certain event.
-    private void notifyOnConnected(BluetoothLeUart uart) {
+    // Private functions to simplify the notification of all callbacks of a certain event.  Callbacks
+    // that implement PeerCallback get the variant that names the peripheral instead.
+    private void notifyOnConnected(BluetoothLeUart uart, BluetoothDevice device) {
         for (UartBase.HostCallback cb : callbacks.keySet()) {
-            if (cb != null) {
+            if (cb instanceof UartBase.PeerCallback) {
+                ((UartBase.PeerCallback) cb).onPeerConnected(uart, device);
+            } else if (cb != null) {
                 cb.onConnected(uart);
             }
         }
     }
 
-    private void notifyOnConnectFailed(BluetoothLeUart uart) {
+    private void notifyOnConnectFailed(BluetoothLeUart uart, BluetoothDevice device) {
         for (UartBase.HostCallback cb : callbacks.keySet()) {
-            if (cb != null) {
+            if (cb instanceof UartBase.PeerCallback) {
+                ((UartBase.PeerCallback) cb).onPeerConnectFailed(uart, device);
+            } else if (cb != null) {
                 cb.onConnectFailed(uart);
             }
         }
     }
 
-    private void notifyOnDisconnected(BluetoothLeUart uart) {
+    private void notifyOnDisconnected(BluetoothLeUart uart, BluetoothDevice device) {
         for (UartBase.HostCallback cb : callbacks.keySet()) {
-            if (cb != null) {
+            if (cb instanceof UartBase.PeerCallback) {
+                ((UartBase.PeerCallback) cb).onPeerDisconnected(uart, device);
+            } else if (cb != null) {
                 cb.onDisconnected(uart);
             }
         }
     }
 
-    private void notifyOnReceive(BluetoothLeUart uart, BluetoothGattCharacteristic rx) {
+    private void notifyOnReceive(PeripheralLink link, byte[] data) {
+        setupLatency.mark(link.timeline, ConnectionTimeline.Phase.FIRST_BYTE);
+        engine.onPacketReceived(link.device.getAddress(), data, 0, data.length);
+    }
+
+    private void deliver(BluetoothLeUart uart, PeripheralLink link, byte[] data, int offset, int length) {
+        UartInputStream stream = inputStream;
+        if (stream != null) {
+            stream.receive(data, offset, length);
+        }
         for (UartBase.HostCallback cb : callbacks.keySet()) {
-            if (cb != null ) {
-                cb.onReceive(uart, rx);
+            if (cb instanceof UartBase.PeerCallback) {
+                ((UartBase.PeerCallback) cb).onPeerReceive(uart, link.device, data, offset, length);
+            } else if (cb != null ) {
+                cb.onReceive(uart, data, offset, length);
+            }
+        }
+    }
+
+    private void notifyOnBackpressure(BluetoothLeUart uart) {
+        for (UartBase.HostCallback cb : callbacks.keySet()) {
+            if (cb != null) {
+                cb.onBackpressure(uart);
+            }
+        }
+    }
+
+    private void notifyOnWritable(BluetoothLeUart uart) {
+        for (UartBase.HostCallback cb : callbacks.keySet()) {
+            if (cb != null) {
+                cb.onWritable(uart);
             }
         }
     }
@@ -425,63 +1285,19 @@ public class BluetoothLeUart extends BluetoothGattCallback implements BluetoothA
         }
     }
 
-    // Notify callbacks of connection failure, and reset connection state.
-    private void connectFailure() {
-        rx = null;
-        tx = null;
-        notifyOnConnectFailed(this);
-    }
-
-    // Filtering by custom UUID is broken in Android 4.3 and 4.4, see:
-    //   http://stackoverflow.com/questions/18019161/startlescan-with-128-bit-uuids-doesnt-work-on-native-android-ble-implementation?noredirect=1#comment27879874_18019161
-    // This is a workaround function from the SO thread to manually parse advertisement data.
-    private List<UUID> parseUUIDs(final byte[] advertisedData) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while (offset < (advertisedData.length - 2)) {
-            int len = advertisedData[offset++];
-            if (len == 0)
-                break;
-
-            int type = advertisedData[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = advertisedData[offset++];
-                        uuid16 += (advertisedData[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-                case 0x06:// Partial list of 128-bit UUIDs
-                case 0x07:// Complete list of 128-bit UUIDs
-                    // Loop through the advertised 128-bit UUID's.
-                    while (len >= 16) {
-                        try {
-                            // Wrap the advertised bits and order them.
-                            ByteBuffer buffer = ByteBuffer.wrap(advertisedData, offset++, 16).order(ByteOrder.LITTLE_ENDIAN);
-                            long mostSignificantBit = buffer.getLong();
-                            long leastSignificantBit = buffer.getLong();
-                            uuids.add(new UUID(leastSignificantBit,
-                                    mostSignificantBit));
-                        } catch (IndexOutOfBoundsException e) {
-                            // Defensive programming.
-                            //Log.e(LOG_TAG, e.toString());
-                            continue;
-                        } finally {
-                            // Move the offset to read the next uuid.
-                            offset += 15;
-                            len -= 16;
-                        }
-                    }
-                    break;
-                default:
-                    offset += (len - 1);
-                    break;
-            }
+    // Notify callbacks of connection failure, and let go of the peripheral.  A link we are
+    // getting back is just dropped again, and the disconnect callback schedules the next attempt,
+    // unless the failure is permanent: the peer isn't a UART we can use.
+    private void connectFailure(PeripheralLink link, boolean permanent) {
+        if (link.reconnecting && autoReconnect && link.gatt != null && !permanent) {
+            link.gatt.disconnect();
+            return;
+        }
+        link.ready = false;
+        if (link.gatt != null) {
+            link.gatt.disconnect();
         }
-        return uuids;
+        closeLink(link);
+        notifyOnConnectFailed(this, link.device);
     }
 }
@@ -1,6 +1,5 @@
 package com.adafruit.bleuart;
 
-import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
@@ -13,32 +12,33 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.os.ParcelUuid;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.UUID;
 import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
-import android.support.annotation.MainThread;
 
 import android.util.Log;
 import static android.bluetooth.BluetoothGattService.SERVICE_TYPE_PRIMARY;
-import static android.bluetooth.BluetoothGattService.SERVICE_TYPE_SECONDARY;
 
 class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartBase,Handler.Callback{
     private static final String ERR_TAG = "FATAL ERROR";
@@ -59,6 +59,14 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
     public static UUID DIS_HWREV_UUID = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
     public static UUID DIS_SWREV_UUID = UUID.fromString("00002a28-0000-1000-8000-00805f9b34fb");
 
+    // ATT MTU every link starts with and the ATT header that eats into each notification.
+    public static final int DEFAULT_MTU = 23;
+    public static final int ATT_HEADER_SIZE = 3;
+
+    private static final int RX_STREAM_CAPACITY = 64 * 1024;
+    private static final int MAX_ATTRIBUTE_LENGTH = 512; // Longest value a long write can build
+    private static final int WRITE_BUFFER_POOL_SIZE = 4; // Spare long write buffers kept for reuse
+
     //MSG IDs
     private static final int MSG_CONNECT = 10;
     private static final int MSG_CONNECTED = 20;
@@ -68,7 +76,13 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
     private static final int MSG_NOTIFIED = 60;
     private static final int MSG_WRITE = 70;
     private static final int MSG_REGISTER = 80;
-    private static final int MSG_REGISTERED = 90;
+    private static final int MSG_MTU_CHANGED = 90;
+    private static final int MSG_EXECUTE_WRITE = 100;
+    private static final int MSG_ADVERTISE_LEGACY = 110;
+    private static final int MSG_PHY_UPDATE = 120;
+    private static final int MSG_NOTIFY_RETRY = 130;
+
+    private static final long NOTIFY_RETRY_MS = 10; // Wait before notifying a central again after the stack refused
 
     // Internal UART state.
     private Context context;
@@ -78,7 +92,11 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
     private BluetoothGattServer mGattServer;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
-    private Set<BluetoothDevice> mRegisteredDevices = new HashSet();
+    private AdvertiseCallback mAdvertiseCallback; // Legacy advertising in progress, BLE thread only
+    private AdvertisingSetCallback mAdvertisingSetCallback; // Advertising set in progress, BLE thread only
+    private volatile boolean longRange; // Advertise on the Coded PHY
+    private Set<BluetoothDevice> mRegisteredDevices =
+            Collections.newSetFromMap(new ConcurrentHashMap<BluetoothDevice, Boolean>());
     private BluetoothGattCharacteristic tx;
     private BluetoothGattCharacteristic rx;
 
@@ -89,20 +107,95 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
     private BluetoothGattCharacteristic disSWRev;
     private boolean disAvailable;
 
-    // Queues for characteristic write (synchronous)
-    private Queue<WriteData> writeQueue = new ConcurrentLinkedQueue<WriteData>();
-    private boolean idle = true;
-
-    //Handler for working with BT ops
+    // Per-central state by address; each central has its own notification in flight
+    private Map<String, CentralLink> mLinks = new ConcurrentHashMap<String, CentralLink>();
+    private int dispatchCursor; // Which central dispatchAll() starts with, rotated for fairness (BLE thread only)
+    private final SetupLatency setupLatency = new SetupLatency();
+    private Map<BluetoothDevice, PreparedWrite> mPreparedWrites = new HashMap<BluetoothDevice, PreparedWrite>(); // BLE thread only
+    private ArrayDeque<byte[]> mWriteBufferPool = new ArrayDeque<byte[]>(); // BLE thread only
+    // TX rings, framing, compression and metrics for every central; the links below only move
+    // its packets
+    private final UartEngine engine;
+
+    // Stream views over the UART, created on first use.
+    private volatile UartInputStream inputStream;
+    private UartOutputStream outputStream;
+
+    //Handler for working with BT ops.  Every GATT server callback is posted here, so link state
+    // other than the TX rings is only touched on the BLE thread.
     private Handler bleHandler;
 
-    public class WriteData {
-        public BluetoothDevice device;
-        byte [] data;
-
-        public WriteData (BluetoothDevice device, byte [] data) {
+    // Link state for one central.  A central only ever has one notification in flight, and only
+    // its own onNotificationSent releases it, so a slow central can't hold up the others.  Its TX
+    // ring is in the engine.  mtu and inFlight belong to the BLE thread.
+    private class CentralLink {
+        final BluetoothDevice device;
+        volatile int mtu = DEFAULT_MTU;
+        volatile int phy = BluetoothDevice.PHY_LE_1M; // TX PHY, from onPhyUpdate
+        final ConnectionTimeline timeline = new ConnectionTimeline();
+        boolean inFlight;
+
+        CentralLink(BluetoothDevice device) {
             this.device = device;
-            this.data = data;
+        }
+    }
+
+    // Notifications go out as dispatchAll() pulls them from the engine, so all the engine needs
+    // from us is a kick when it has data, and a timer.
+    private final GattTransport transport = new GattTransport() {
+        @Override
+        public void setEndpoint(Endpoint endpoint) {
+            // The engine is the only endpoint, and the links call it directly.
+        }
+
+        @Override
+        public void requestSend(String peer) {
+            dispatch();
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            bleHandler.removeCallbacks(task);
+            bleHandler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            bleHandler.removeCallbacks(task);
+        }
+    };
+
+    // Hands the engine's received messages and TX buffer state to the callbacks.
+    private final UartEngine.Listener engineListener = new UartEngine.Listener() {
+        @Override
+        public void onReceive(String peer, byte[] data, int offset, int length) {
+            CentralLink link = mLinks.get(peer);
+            if (link != null) {
+                deliver(BluetoothLeUartServer.this, link.device, data, offset, length);
+            }
+        }
+
+        @Override
+        public void onBackpressure() {
+            notifyOnBackpressure(BluetoothLeUartServer.this);
+        }
+
+        @Override
+        public void onWritable() {
+            notifyOnWritable(BluetoothLeUartServer.this);
+        }
+    };
+
+    // A long write in progress from one central.  Prepared fragments are copied in at their offsets
+    // and the whole value is delivered once the central executes the write, unless a fragment was
+    // rejected along the way.
+    private static class PreparedWrite {
+        final byte[] buffer;
+        int length;
+        int status = BluetoothGatt.GATT_SUCCESS; // Why the first rejected fragment was rejected
+
+        PreparedWrite(byte[] buffer) {
+            this.buffer = buffer;
         }
     }
 
@@ -112,13 +205,20 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
         public int requestId;
         public int offset;
         public BluetoothGattCharacteristic characteristic;
+        public boolean preparedWrite;
+        public boolean responseNeeded;
+        public byte[] value;
 
         public WriteRequest(BluetoothDevice device,
-                           int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+                           int requestId, int offset, BluetoothGattCharacteristic characteristic,
+                           boolean preparedWrite, boolean responseNeeded, byte[] value) {
             this.device = device;
             this.requestId = requestId;
             this.offset = offset;
             this.characteristic = characteristic;
+            this.preparedWrite = preparedWrite;
+            this.responseNeeded = responseNeeded;
+            this.value = value;
         }
     }
 
@@ -145,6 +245,7 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
 
     public BluetoothLeUartServer(Context context) {
         this.context = context;
+        this.engine = new UartEngine(transport, engineListener);
 
         final BluetoothManager mBluetoothManager =
                 (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
@@ -165,53 +266,82 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
     public boolean handleMessage(Message message) {
         switch (message.what) {
             case MSG_CONNECT:
-
+                startLeAdvertising();
                 break;
             case MSG_CONNECTED:
-                //doConnected((BluetoothDevice)message.obj);
+                Log.i(INFO_TAG, "Connected to: " + message.obj);
+                // A central can write before it subscribes to notifications.
+                engine.addPeer(((BluetoothDevice)message.obj).getAddress());
+                setupLatency.mark(addLink((BluetoothDevice)message.obj).timeline, ConnectionTimeline.Phase.CONNECTED);
                 break;
             case MSG_DISCONNECT:
-
+                doStopAdvertising();
                 break;
             case MSG_DISCONNECTED:
-                //doDisconnected((BluetoothDevice)message.obj);
+                doDisconnected((BluetoothDevice)message.obj);
                 break;
             case MSG_NOTIFY:
-                //doNotifyRegisteredDevice((NotifyRequest)message.obj);
+                dispatchAll();
+                break;
+            case MSG_NOTIFY_RETRY:
+                CentralLink retry = mLinks.get(((BluetoothDevice)message.obj).getAddress());
+                if (retry != null) {
+                    notifyNextFrame(retry);
+                }
                 break;
             case MSG_NOTIFIED:
-                //doNotified((BluetoothDevice)message.obj);
+                doNotified((BluetoothDevice)message.obj, message.arg1);
                 break;
             case MSG_WRITE:
-
+                doWrite((WriteRequest)message.obj);
                 break;
             case MSG_REGISTER:
-                //doRegister((RegRequest)message.obj);
+                doRegister((RegRequest)message.obj);
+                break;
+            case MSG_EXECUTE_WRITE:
+                doExecuteWrite((BluetoothDevice)message.obj, message.arg1, message.arg2 != 0);
+                break;
+            case MSG_ADVERTISE_LEGACY:
+                doAdvertiseLegacy((AdvertisingSetCallback)message.obj);
+                break;
+            case MSG_PHY_UPDATE:
+                doPhyUpdate((BluetoothDevice)message.obj, message.arg1, message.arg2);
+                break;
+            case MSG_MTU_CHANGED:
+                Log.i(INFO_TAG, message.obj + " MTU changed to " + message.arg1);
+                CentralLink resized = mLinks.get(((BluetoothDevice)message.obj).getAddress());
+                if (resized != null) {
+                    resized.mtu = message.arg1;
+                }
                 break;
-
         }
         return true;
     }
 
     public void start(){
-        startLeAdvertising();
+        bleHandler.sendEmptyMessage(MSG_CONNECT);
     }
 
     public void disconnect() {
         //do nothing
     }
     public void stop(){
-        mBluetoothLeAdvertiser.stopAdvertising(new AdvertiseCallback (){
-            @Override
-            public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-                Log.i(INFO_TAG, "LE Advertise Started");
-            }
+        bleHandler.sendEmptyMessage(MSG_DISCONNECT);
+    }
 
-            @Override
-            public void onStartFailure(int errorCode) {
-                Log.e(ERR_TAG, "LE Advertise Failed: " + errorCode);
-            }
-        });
+    // Stop advertising.  The advertiser only stops what was started with the same callback.
+    private void doStopAdvertising() {
+        if (mBluetoothLeAdvertiser == null) {
+            return;
+        }
+        if (mAdvertisingSetCallback != null) {
+            mBluetoothLeAdvertiser.stopAdvertisingSet(mAdvertisingSetCallback);
+            mAdvertisingSetCallback = null;
+        }
+        if (mAdvertiseCallback != null) {
+            mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
+            mAdvertiseCallback = null;
+        }
     }
 
     // Register the specified callback to receive UART callbacks.
@@ -230,41 +360,196 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
 
     public boolean deviceInfoAvailable() { return disAvailable; }
 
-    public void doNotify (WriteData writeData) {
+    // When each phase of the central's connection happened, or null if it isn't connected.  A
+    // peripheral only sees the connection from CONNECTED onwards.
+    public ConnectionTimeline getConnectionTimeline(BluetoothDevice device) {
+        CentralLink link = mLinks.get(device.getAddress());
+        return (link == null) ? null : link.timeline.snapshot();
+    }
+
+    public SetupLatency getSetupLatency() {
+        return setupLatency;
+    }
+
+    public UartMetrics getMetrics() {
+        return engine.getMetrics();
+    }
+
+    // Return the ATT MTU negotiated by the given central.
+    public int getMtu(BluetoothDevice device) {
+        CentralLink link = mLinks.get(device.getAddress());
+        return (link == null) ? DEFAULT_MTU : link.mtu;
+    }
+
+    // The central's link, made when it connects or subscribes.  Other paths only look links up,
+    // so nothing brings back one that was removed.
+    private CentralLink addLink(BluetoothDevice device) {
+        CentralLink link = mLinks.get(device.getAddress());
+        if (link == null) {
+            synchronized (mLinks) {
+                link = mLinks.get(device.getAddress());
+                if (link == null) {
+                    link = new CentralLink(device);
+                    mLinks.put(device.getAddress(), link);
+                }
+            }
+        }
+        return link;
+    }
+
+    private void removeLink(BluetoothDevice device) {
+        mLinks.remove(device.getAddress());
+        engine.closePeer(device.getAddress());
+    }
+
+    // Hold back a partial frame for up to the given number of microseconds so that following
+    // sends can be packed into the same frame.  0 (the default) sends whatever is pending as soon
+    // as the link is free.
+    public void setFlushDeadline(long micros) {
+        engine.setFlushDeadline(micros);
+    }
+
+    // Notify a single frame to the central.  Returns false if the notification wasn't sent, in
+    // which case no onNotificationSent will follow.  BLE thread only, so no other central's
+    // value can replace this one between setValue and the notification.
+    private boolean doNotify (BluetoothDevice device, byte[] frame) {
         BluetoothGattCharacteristic characteristic = mGattServer
                 .getService(UART_UUID)
                 .getCharacteristic(RX_UUID);
-        characteristic.setValue(writeData.data);
-        idle = false;
 
-        Log.i("BlueNet", "notifying " + writeData.device.getAddress());
+        UartTrace.trace(UartTrace.DEBUG, UartTrace.NOTIFY, device.getAddress(), frame.length);
 
+        characteristic.setValue(frame);
         try {
-            boolean res = mGattServer.notifyCharacteristicChanged(writeData.device, characteristic, false);
+            boolean res = mGattServer.notifyCharacteristicChanged(device, characteristic, false);
 
             if (!res) {
-                Log.e("BlueNet", "Notification unsuccessful!");
+                UartTrace.trace(UartTrace.WARN, UartTrace.NOTIFY_REJECTED, device.getAddress());
             }
+            return res;
         } catch (NullPointerException x) {
-            Log.e("BlueNet", "A device disconnected unexpectedly");
+            UartTrace.trace(UartTrace.WARN, UartTrace.NOTIFY_DISCONNECTED, device.getAddress());
+            return false;
         }
     }
 
-    // Send data to connected UART device.
+    // Start a notification on every central that has data waiting and nothing in flight.  The
+    // starting central rotates on each call so no central is always served first.
+    private void dispatchAll() {
+        List<CentralLink> links = new ArrayList<CentralLink>(mLinks.values());
+        int count = links.size();
+        if (count == 0) {
+            return;
+        }
+        int start = (dispatchCursor++ & Integer.MAX_VALUE) % count;
+        for (int i = 0; i < count; i++) {
+            notifyNextFrame(links.get((start + i) % count));
+        }
+    }
+
+    // Notify the central with as much of its pending data as its MTU allows, unless it already
+    // has a notification in flight.  A partial frame is held back until the flush deadline, if one
+    // is set.  BLE thread only.
+    private void notifyNextFrame(CentralLink link) {
+        if (link.inFlight) {
+            return;
+        }
+        String address = link.device.getAddress();
+        byte[] frame = engine.nextPacket(address, link.mtu - ATT_HEADER_SIZE);
+        if (frame == null) {
+            return;
+        }
+        link.inFlight = doNotify(link.device, frame);
+        if (!link.inFlight) {
+            // The engine puts the packet back; nothing else will come for this central, so try
+            // it again shortly rather than waiting for the next send().
+            engine.onPacketSent(address, false);
+            bleHandler.sendMessageDelayed(bleHandler.obtainMessage(MSG_NOTIFY_RETRY, link.device),
+                    NOTIFY_RETRY_MS);
+        }
+    }
+
+    // Get the BLE thread to notify pending data, unless it's already been asked to.
+    private void dispatch() {
+        if (!bleHandler.hasMessages(MSG_NOTIFY)) {
+            bleHandler.sendEmptyMessage(MSG_NOTIFY);
+        }
+    }
+
+    // Send data to every registered central.  Each central's data is queued in its own TX ring
+    // and leaves in frames of up to (MTU - 3) bytes, so small sends are coalesced.  Data that
+    // doesn't fit in the rings is handled according to the overflow policy.
     public void send(byte[] data) {
-        if (data == null || data.length == 0) {
-            // Do nothing if there is no connection or message to send.
+        engine.send(null, data);
+    }
+
+    // Send data to one registered central only.
+    public void send(BluetoothDevice device, byte[] data) {
+        if (!mRegisteredDevices.contains(device)) {
+            Log.w("BlueNet", device.getAddress() + " is not registered, dropped send");
             return;
         }
+        engine.send(device.getAddress(), data);
+    }
+
+    public List<BluetoothDevice> getConnectedDevices() {
+        return new ArrayList<BluetoothDevice>(mRegisteredDevices);
+    }
+
+    public int offer(byte[] data, int offset, int length) {
+        return engine.offer(data, offset, length);
+    }
+
+    public void setTxLimits(int capacity, int lowWatermark, int highWatermark, OverflowPolicy policy) {
+        engine.setTxLimits(capacity, lowWatermark, highWatermark, policy);
+    }
+
+    public boolean awaitWritable(long timeoutMillis) throws InterruptedException {
+        return engine.awaitWritable(timeoutMillis);
+    }
+
+    public void setFrameCodec(FrameCodec codec) {
+        engine.setFrameCodec(codec);
+    }
+
+    // Centrals offer compression once connected; with this enabled we accept.
+    public void setCompressionEnabled(boolean enable) {
+        engine.setCompressionEnabled(enable);
+    }
 
-        for (BluetoothDevice device : mRegisteredDevices) {
-            writeQueue.offer(new WriteData(device, data));
+    public void setReliableEnabled(boolean enable) {
+        engine.setReliableEnabled(enable);
+    }
+
+    // A peripheral can't ask for a connection interval on Android, the central chooses it.  The
+    // only thing left to pick is the PHY, and that is 2M for every profile.
+    public void setConnectionProfile(UartBase.ConnectionProfile profile) {
+    }
+
+    // Nothing to boost without control of the connection interval.
+    public void setBulkBoostEnabled(boolean enable) {
+    }
+
+    // Ask for the 2M PHY on a newly registered central, if both ends have it.
+    private void requestPreferredPhy(BluetoothDevice device) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mBluetoothAdapter.isLe2MPhySupported()) {
+            mGattServer.setPreferredPhy(device, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+    }
+
+    public synchronized UartInputStream getInputStream() {
+        if (inputStream == null) {
+            inputStream = new UartInputStream(RX_STREAM_CAPACITY);
         }
+        return inputStream;
+    }
 
-        if (idle && !writeQueue.isEmpty()) {
-            WriteData writeData = writeQueue.poll();
-            doNotify(writeData);
+    public synchronized UartOutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new UartOutputStream(this);
         }
+        return outputStream;
     }
 
     // Send data to connected UART device.
@@ -293,8 +578,9 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
         //from gatt client to server
         BluetoothGattCharacteristic txChar =
                 new BluetoothGattCharacteristic(TX_UUID,
-                        //write permissions
-                        BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+                        //write permissions, with or without response so centrals can stream
+                        BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                        BluetoothGattCharacteristic.PERMISSION_WRITE);
 
 
         service.addCharacteristic(txChar);
@@ -305,30 +591,82 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
 
 
 
+    // Advertise the UART service.  Where the adapter supports extended advertising we use an
+    // advertising set: the primary channels stay on 1M so every scanner can see us, and the rest
+    // of the exchange moves to 2M, or everything to Coded for long range.  Otherwise, or if the set
+    // fails to start, we fall back to legacy advertising.
     public void startLeAdvertising(){ // without adv payload
-        AdvertiseSettings settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY) //3 modes: LOW_POWER, BALANCED, LOW_LATENCY
-                .setConnectable(true)
-                .setTimeout(0)
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH) // ULTRA_LOW, LOW, MEDIUM, HIGH
-                .build();
+        //get an advertiser object
+        mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+        if (mBluetoothLeAdvertiser == null){
+            Log.e(ERR_TAG, "no BLE advertiser assigned!!!");
+            return;
+        }
+        doStopAdvertising();
 
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mBluetoothAdapter.isLeExtendedAdvertisingSupported()) {
+            startAdvertisingSet();
+        } else {
+            startLegacyAdvertising();
+        }
+    }
+
+    private AdvertiseData advertiseData() {
         //set of the advertising data to advertise the service!
-        AdvertiseData data = new AdvertiseData.Builder()
+        return new AdvertiseData.Builder()
                 .setIncludeDeviceName(false)
                 .setIncludeTxPowerLevel(false)
                 .addServiceUuid(new ParcelUuid(UART_UUID))
                 .build();
+    }
 
-        //get an advertiser object
-        mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
-        if (mBluetoothLeAdvertiser == null){
-            Log.e(ERR_TAG, "no BLE advertiser assigned!!!");
-            return;
+    private void startAdvertisingSet() {
+        int primaryPhy = BluetoothDevice.PHY_LE_1M;
+        int secondaryPhy = BluetoothDevice.PHY_LE_1M;
+        if (longRange && mBluetoothAdapter.isLeCodedPhySupported()) {
+            primaryPhy = BluetoothDevice.PHY_LE_CODED;
+            secondaryPhy = BluetoothDevice.PHY_LE_CODED;
+        } else if (mBluetoothAdapter.isLe2MPhySupported()) {
+            secondaryPhy = BluetoothDevice.PHY_LE_2M;
         }
 
+        // Extended advertisements can't be both connectable and scannable; the UUID fits in the
+        // advertisement itself, so there's nothing to put in a scan response anyway.
+        AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(false)
+                .setConnectable(true)
+                .setScannable(false)
+                .setInterval(AdvertisingSetParameters.INTERVAL_LOW)
+                .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_HIGH)
+                .setPrimaryPhy(primaryPhy)
+                .setSecondaryPhy(secondaryPhy)
+                .build();
+
+        mAdvertisingSetCallback = new AdvertisingSetCallback() {
+            @Override
+            public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+                if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                    Log.i(INFO_TAG, "LE Advertising set started");
+                } else {
+                    Log.w(ERR_TAG, "LE Advertising set failed: " + status + ", falling back to legacy");
+                    bleHandler.obtainMessage(MSG_ADVERTISE_LEGACY, this).sendToTarget();
+                }
+            }
+        };
+        mBluetoothLeAdvertiser.startAdvertisingSet(parameters, advertiseData(), null, null, null,
+                mAdvertisingSetCallback);
+    }
+
+    private void startLegacyAdvertising() {
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY) //3 modes: LOW_POWER, BALANCED, LOW_LATENCY
+                .setConnectable(true)
+                .setTimeout(0)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH) // ULTRA_LOW, LOW, MEDIUM, HIGH
+                .build();
+
         //start advertising
-        mBluetoothLeAdvertiser.startAdvertising(settings, data, new AdvertiseCallback (){
+        mAdvertiseCallback = new AdvertiseCallback (){
             @Override
             public void onStartSuccess(AdvertiseSettings settingsInEffect) {
                 Log.i(INFO_TAG, "LE Advertise Started");
@@ -338,11 +676,37 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
             public void onStartFailure(int errorCode) {
                 Log.e(ERR_TAG, "LE Advertise Failed: " + errorCode);
             }
-        });
+        };
+        mBluetoothLeAdvertiser.startAdvertising(settings, advertiseData(), mAdvertiseCallback);
+    }
+
+    // The advertising set didn't start.  Ignore it if advertising has been stopped or restarted
+    // since.
+    private void doAdvertiseLegacy(AdvertisingSetCallback failed) {
+        if (failed == mAdvertisingSetCallback) {
+            mAdvertisingSetCallback = null;
+            startLegacyAdvertising();
+        }
+    }
+
+    // Advertise on the LE Coded PHY for roughly four times the range, at a quarter of the speed.
+    // Only scanners that look on Coded will find us.  Takes effect the next time advertising
+    // starts, and only where the adapter supports extended advertising and Coded.
+    public void setLongRangeAdvertising(boolean enable) {
+        longRange = enable;
+    }
+
+    // Return the TX PHY in use with a central, one of BluetoothDevice.PHY_LE_*.
+    public int getPhy(BluetoothDevice device) {
+        CentralLink link = mLinks.get(device.getAddress());
+        return (link == null) ? BluetoothDevice.PHY_LE_1M : link.phy;
     }
 
     //GATT server callbacks
 
+    // The callbacks below run on binder threads.  They only post to the BLE thread, which does
+    // the actual work, so the stack gets its thread back straight away.
+
     // make sure to log when other devices have connected and disconnected from the gatt server
     @Override
     public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
@@ -350,18 +714,23 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
         if (status == BluetoothGatt.GATT_SUCCESS){
             switch (newState) {
                 case BluetoothGatt.STATE_CONNECTED:
-                    Log.i(INFO_TAG, "Connected to: " + device);
-                   // bleHandler.obtainMessage(MSG_CONNECTED, device).sendToTarget();
+                    bleHandler.obtainMessage(MSG_CONNECTED, device).sendToTarget();
                     break;
 
                 case BluetoothGatt.STATE_DISCONNECTED:
-                  //  bleHandler.obtainMessage(MSG_DISCONNECTED, device).sendToTarget();
-                    notifyOnDisconnected(this);
+                    bleHandler.obtainMessage(MSG_DISCONNECTED, device).sendToTarget();
                     break;
             }
         }
     }
 
+    private void doDisconnected(BluetoothDevice device) {
+        discardPreparedWrite(device);
+        mRegisteredDevices.remove(device);
+        removeLink(device);
+        notifyOnDisconnected(this, device);
+    }
+
     @Override
     public void onCharacteristicWriteRequest(BluetoothDevice device,
                                              int requestId,
@@ -372,17 +741,102 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
                                              byte[] value) {
         super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
                 responseNeeded, offset, value);
-        Log.i("Peripheral", "onCharacteristicWriteRequest " + characteristic.getUuid().toString());
-        Log.i("Peripheral", new String(value));
-        //handle long writes?
+        // value is a fresh array for every request, so it's safe to hand to the BLE thread.
+        WriteRequest writeReq = new WriteRequest(device, requestId, offset, characteristic,
+                preparedWrite, responseNeeded, value);
+        bleHandler.obtainMessage(MSG_WRITE, writeReq).sendToTarget();
+    }
+
+    private void doWrite(WriteRequest req) {
+        UartTrace.trace(UartTrace.DEBUG, UartTrace.WRITE_REQUEST, req.device.getAddress(),
+                (req.value == null) ? 0 : req.value.length, req.offset);
+        if (req.preparedWrite) {
+            doPrepareWrite(req);
+            return;
+        }
         //handle different receive queues
-        characteristic.setValue(value);
-        notifyOnReceive(this, characteristic);
-        if (responseNeeded) {
-            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+        notifyOnReceive(req.device, req.value, 0, req.value.length);
+        if (req.responseNeeded) {
+            mGattServer.sendResponse(req.device, req.requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+        }
+    }
+
+    // Add one fragment of a long write to the central's prepared value.  Nothing is delivered until
+    // onExecuteWrite.  The fragment is echoed back in the response so the central can check it.
+    private void doPrepareWrite(WriteRequest req) {
+        int length = (req.value == null) ? 0 : req.value.length;
+        PreparedWrite prepared = mPreparedWrites.get(req.device);
+        if (prepared == null) {
+            prepared = new PreparedWrite(obtainWriteBuffer());
+            mPreparedWrites.put(req.device, prepared);
+        }
+        int status = BluetoothGatt.GATT_SUCCESS;
+        if (req.offset < 0 || req.offset > MAX_ATTRIBUTE_LENGTH) {
+            status = BluetoothGatt.GATT_INVALID_OFFSET;
+        } else if (req.offset + length > MAX_ATTRIBUTE_LENGTH) {
+            status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        } else {
+            if (length > 0) {
+                System.arraycopy(req.value, 0, prepared.buffer, req.offset, length);
+            }
+            prepared.length = Math.max(prepared.length, req.offset + length);
+        }
+
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w("Peripheral", "Rejected prepared write at offset " + req.offset + ", " + length + " bytes");
+            // The value now has a hole in it; none of it may be delivered.
+            if (prepared.status == BluetoothGatt.GATT_SUCCESS) {
+                prepared.status = status;
+            }
+        }
+        if (req.responseNeeded) {
+            mGattServer.sendResponse(req.device, req.requestId, status, req.offset, req.value);
+        }
+    }
+
+    // Deliver the central's prepared value as one payload, or drop it if the write was cancelled.
+    // Executing a write with a rejected fragment drops it too, and fails with that fragment's
+    // status.
+    private void doExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+        PreparedWrite prepared = mPreparedWrites.remove(device);
+        int status = BluetoothGatt.GATT_SUCCESS;
+        if (prepared != null) {
+            if (execute && prepared.status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w("Peripheral", "Dropped prepared write of " + prepared.length + " bytes with a rejected fragment");
+                status = prepared.status;
+            } else if (execute && prepared.length > 0) {
+                notifyOnReceive(device, prepared.buffer, 0, prepared.length);
+            }
+            recycleWriteBuffer(prepared.buffer);
+        }
+        mGattServer.sendResponse(device, requestId, status, 0, null);
+    }
+
+    private void discardPreparedWrite(BluetoothDevice device) {
+        PreparedWrite prepared = mPreparedWrites.remove(device);
+        if (prepared != null) {
+            recycleWriteBuffer(prepared.buffer);
         }
     }
 
+    private byte[] obtainWriteBuffer() {
+        byte[] buffer = mWriteBufferPool.poll();
+        return (buffer != null) ? buffer : new byte[MAX_ATTRIBUTE_LENGTH];
+    }
+
+    private void recycleWriteBuffer(byte[] buffer) {
+        if (mWriteBufferPool.size() < WRITE_BUFFER_POOL_SIZE) {
+            mWriteBufferPool.offer(buffer);
+        }
+    }
+
+    // The central is done sending a long write, or has given up on it.
+    @Override
+    public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+        super.onExecuteWrite(device, requestId, execute);
+        bleHandler.obtainMessage(MSG_EXECUTE_WRITE, requestId, execute ? 1 : 0, device).sendToTarget();
+    }
+
     //Handle read requests to the read  characteristic. Can handle long reads
     //also marks the last read time on this characteristic. We use this for a timeout
     //on the availability of the data in this characteristic
@@ -399,53 +853,97 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
     //this doesn't need to be done per characteristic
     @Override
     public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-        Log.i(INFO_TAG, device + " registering");
-        if (CLIENT_UUID.equals(descriptor.getUuid())) {
-            if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, value)) {
-                mRegisteredDevices.add(device);
-                notifyOnConnected(this);
-            } else if (Arrays.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, value)) {
-                mRegisteredDevices.remove(device);
-                notifyOnDisconnected(this);
+        RegRequest regReq = new RegRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
+        bleHandler.obtainMessage(MSG_REGISTER, regReq).sendToTarget();
+    }
+
+    private void doRegister(RegRequest req) {
+        Log.i(INFO_TAG, req.device + " registering");
+        if (CLIENT_UUID.equals(req.descriptor.getUuid())) {
+            if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, req.value)) {
+                mRegisteredDevices.add(req.device);
+                engine.openPeer(req.device.getAddress());
+                setupLatency.mark(addLink(req.device).timeline, ConnectionTimeline.Phase.NOTIFICATIONS_ENABLED);
+                requestPreferredPhy(req.device);
+                notifyOnConnected(this, req.device);
+            } else if (Arrays.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, req.value)) {
+                // Still connected and may still write, so keep the link and take the central
+                // back to receive only, dropping what was queued for it.
+                mRegisteredDevices.remove(req.device);
+                engine.closePeer(req.device.getAddress());
+                engine.addPeer(req.device.getAddress());
+                notifyOnDisconnected(this, req.device);
             }
 
-            if (responseNeeded) {
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            if (req.responseNeeded) {
+                mGattServer.sendResponse(req.device, req.requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
             }
         } else {
             Log.w(INFO_TAG, "Unknown descriptor write request");
-            if (responseNeeded) {
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+            if (req.responseNeeded) {
+                mGattServer.sendResponse(req.device, req.requestId, BluetoothGatt.GATT_FAILURE, 0, null);
             }
         }
     }
 
 
+    // Centrals negotiate the MTU, we just remember what each one agreed to.
+    @Override
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+        super.onMtuChanged(device, mtu);
+        bleHandler.obtainMessage(MSG_MTU_CHANGED, mtu, 0, device).sendToTarget();
+    }
+
+    // The link moved to another PHY, after our request or the central's.
+    @Override
+    public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+        super.onPhyUpdate(device, txPhy, rxPhy, status);
+        bleHandler.obtainMessage(MSG_PHY_UPDATE, txPhy, status, device).sendToTarget();
+    }
+
+    private void doPhyUpdate(BluetoothDevice device, int txPhy, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(INFO_TAG, device + " PHY update failed: " + status);
+            return;
+        }
+        Log.i(INFO_TAG, device + " TX PHY is now " + txPhy);
+        CentralLink link = mLinks.get(device.getAddress());
+        if (link != null) {
+            link.phy = txPhy;
+        }
+    }
+
     @Override
     public void onNotificationSent (BluetoothDevice device, int status) {
         super.onNotificationSent(device, status);
-        if (status == BluetoothGatt.GATT_SUCCESS) {
+        bleHandler.obtainMessage(MSG_NOTIFIED, status, 0, device).sendToTarget();
+    }
 
-            WriteData writeData = writeQueue.poll();
+    private void doNotified(BluetoothDevice device, int status) {
+        UartTrace.trace((status == BluetoothGatt.GATT_SUCCESS) ? UartTrace.DEBUG : UartTrace.WARN,
+                UartTrace.NOTIFY_DONE, device.getAddress(), status);
 
-            if (null == writeData) { //empty!
-                idle = true;
-            } else {
-                doNotify(writeData);
+        // This central's notification is done either way, give it the next frame.
+        CentralLink link = mLinks.get(device.getAddress());
+        if (link != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                setupLatency.mark(link.timeline, ConnectionTimeline.Phase.FIRST_BYTE);
             }
-
-            //bleHandler.obtainMessage(MSG_NOTIFIED, device).sendToTarget();
-            Log.d("BlueNet", "Notification sent");
-        }
-        else {
-            Log.i("BlueNet", String.format("Failure: %d", status));
+            if (link.inFlight) {
+                engine.onPacketSent(device.getAddress(), status == BluetoothGatt.GATT_SUCCESS);
+            }
+            link.inFlight = false;
+            notifyNextFrame(link);
         }
     }
 
-    // Private functions to simplify the notification of all callbacks of a certain event.
-    private void notifyOnConnected(BluetoothLeUartServer uart) {
+    // Private functions to simplify the notification of all callbacks of a certain event.  Callbacks
+    // that implement PeerCallback get the variant that names the central instead.
+    private void notifyOnConnected(BluetoothLeUartServer uart, BluetoothDevice device) {
         for (UartBase.HostCallback cb : callbacks.keySet()) {
-            if (cb != null) {
+            if (cb instanceof UartBase.PeerCallback) {
+                ((UartBase.PeerCallback) cb).onPeerConnected(uart, device);
+            } else if (cb != null) {
                 cb.onConnected(uart);
             }
         }
@@ -459,18 +957,50 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
         }
     }
 
-    private void notifyOnDisconnected(BluetoothLeUartServer uart) {
+    private void notifyOnDisconnected(BluetoothLeUartServer uart, BluetoothDevice device) {
         for (UartBase.HostCallback cb : callbacks.keySet()) {
-            if (cb != null) {
+            if (cb instanceof UartBase.PeerCallback) {
+                ((UartBase.PeerCallback) cb).onPeerDisconnected(uart, device);
+            } else if (cb != null) {
                 cb.onDisconnected(uart);
             }
         }
     }
 
-    private void notifyOnReceive(BluetoothLeUartServer uart, BluetoothGattCharacteristic characteristic) {
+    private void notifyOnReceive(BluetoothDevice device, byte[] data, int offset, int length) {
+        CentralLink link = mLinks.get(device.getAddress());
+        if (link != null) {
+            setupLatency.mark(link.timeline, ConnectionTimeline.Phase.FIRST_BYTE);
+        }
+        engine.onPacketReceived(device.getAddress(), data, offset, length);
+    }
+
+    private void deliver(BluetoothLeUartServer uart, BluetoothDevice device, byte[] data, int offset, int length) {
+        UartInputStream stream = inputStream;
+        if (stream != null) {
+            stream.receive(data, offset, length);
+        }
         for (UartBase.HostCallback cb : callbacks.keySet()) {
-            if (cb != null ) {
-                cb.onReceive(uart, characteristic);
+            if (cb instanceof UartBase.PeerCallback) {
+                ((UartBase.PeerCallback) cb).onPeerReceive(uart, device, data, offset, length);
+            } else if (cb != null ) {
+                cb.onReceive(uart, data, offset, length);
+            }
+        }
+    }
+
+    private void notifyOnBackpressure(BluetoothLeUartServer uart) {
+        for (UartBase.HostCallback cb : callbacks.keySet()) {
+            if (cb != null) {
+                cb.onBackpressure(uart);
+            }
+        }
+    }
+
+    private void notifyOnWritable(BluetoothLeUartServer uart) {
+        for (UartBase.HostCallback cb : callbacks.keySet()) {
+            if (cb != null) {
+                cb.onWritable(uart);
             }
         }
     }
@@ -497,57 +1027,4 @@ class BluetoothLeUartServer extends BluetoothGattServerCallback implements UartB
 //        tx = null;
         notifyOnConnectFailed(this);
     }
-
-    // Filtering by custom UUID is broken in Android 4.3 and 4.4, see:
-    //   http://stackoverflow.com/questions/18019161/startlescan-with-128-bit-uuids-doesnt-work-on-native-android-ble-implementation?noredirect=1#comment27879874_18019161
-    // This is a workaround function from the SO thread to manually parse advertisement data.
-    private List<UUID> parseUUIDs(final byte[] advertisedData) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while (offset < (advertisedData.length - 2)) {
-            int len = advertisedData[offset++];
-            if (len == 0)
-                break;
-
-            int type = advertisedData[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = advertisedData[offset++];
-                        uuid16 += (advertisedData[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-                case 0x06:// Partial list of 128-bit UUIDs
-                case 0x07:// Complete list of 128-bit UUIDs
-                    // Loop through the advertised 128-bit UUID's.
-                    while (len >= 16) {
-                        try {
-                            // Wrap the advertised bits and order them.
-                            ByteBuffer buffer = ByteBuffer.wrap(advertisedData, offset++, 16).order(ByteOrder.LITTLE_ENDIAN);
-                            long mostSignificantBit = buffer.getLong();
-                            long leastSignificantBit = buffer.getLong();
-                            uuids.add(new UUID(leastSignificantBit,
-                                    mostSignificantBit));
-                        } catch (IndexOutOfBoundsException e) {
-                            // Defensive programming.
-                            //Log.e(LOG_TAG, e.toString());
-                            continue;
-                        } finally {
-                            // Move the offset to read the next uuid.
-                            offset += 15;
-                            len -= 16;
-                        }
-                    }
-                    break;
-                default:
-                    offset += (len - 1);
-                    break;
-            }
-        }
-        return uuids;
-    }
 }
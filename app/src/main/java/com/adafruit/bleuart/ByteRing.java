@@ -0,0 +1,248 @@
+package com.adafruit.bleuart;
+
+// Byte-level FIFO used to collect outgoing UART data.  Consecutive send() calls land back to back
+// in the ring, so when the link is ready for the next frame it can be packed as full as the MTU
+// allows instead of carrying one send() per packet.  write() grows the ring when data doesn't fit,
+// offer() only takes what fits under the limit.
+// All methods are synchronized so producers and the BLE callback thread can share an instance.
+public class ByteRing {
+    private int limit; // Most bytes offer() will let the ring hold
+    private byte[] buffer;
+    private int head; // Index of the oldest byte
+    private int size; // Number of bytes stored
+    // When each write still in the ring happened and how many of its bytes are left, oldest first.
+    // Once MAX_STAMPS writes are waiting, later ones are counted against the newest stamp, so the
+    // wait of the bytes they wrote can only be overstated.
+    private static final int MAX_STAMPS = 32;
+    private final long[] stampNanos = new long[MAX_STAMPS];
+    private final int[] stampBytes = new int[MAX_STAMPS];
+    private int stampHead;
+    private int stampCount;
+    // Where each frame from writeFrame() ends, counted in bytes ever written, so a new connection
+    // can start on a frame boundary.  Ends the last read() or skip() passed are kept until the
+    // next one, so unread() can put that read back.
+    private long written;
+    private long consumed;
+    private long[] frameEnds = new long[16];
+    private int frameHead;
+    private int frameCount;
+    private long lastEnd; // Newest end dropped from frameEnds, at or before consumed
+
+    public ByteRing(int initialCapacity) {
+        this(initialCapacity, Integer.MAX_VALUE);
+    }
+
+    public ByteRing(int initialCapacity, int limit) {
+        this.limit = limit;
+        this.buffer = new byte[Math.max(1, initialCapacity)];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized int capacity() {
+        return buffer.length;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    // Return how many more bytes offer() will accept.
+    public synchronized int remaining() {
+        return Math.max(0, limit - size);
+    }
+
+    // Return the System.nanoTime() of the write that put the oldest byte in the ring, or 0 if it
+    // is empty.
+    public synchronized long getOldestWriteNanos() {
+        return (stampCount == 0) ? 0 : stampNanos[stampHead];
+    }
+
+    // Append len bytes of data starting at offset, growing the ring if needed.
+    public synchronized void write(byte[] data, int offset, int len) {
+        if (len <= 0) {
+            return;
+        }
+        if (stampCount < MAX_STAMPS) {
+            int stamp = (stampHead + stampCount++) % MAX_STAMPS;
+            stampNanos[stamp] = System.nanoTime();
+            stampBytes[stamp] = len;
+        } else {
+            stampBytes[(stampHead + stampCount - 1) % MAX_STAMPS] += len;
+        }
+        ensureCapacity(size + len);
+
+        int tail = (head + size) % buffer.length;
+        int first = Math.min(len, buffer.length - tail);
+        System.arraycopy(data, offset, buffer, tail, first);
+        System.arraycopy(data, offset + first, buffer, 0, len - first);
+        size += len;
+        written += len;
+    }
+
+    // Append len bytes of data as one whole frame, remembering where it ends.
+    public synchronized void writeFrame(byte[] data, int offset, int len) {
+        if (len <= 0) {
+            return;
+        }
+        write(data, offset, len);
+        if (frameCount == frameEnds.length) {
+            long[] grown = new long[frameEnds.length * 2];
+            for (int i = 0; i < frameCount; i++) {
+                grown[i] = frameEnds[(frameHead + i) % frameEnds.length];
+            }
+            frameEnds = grown;
+            frameHead = 0;
+        }
+        frameEnds[(frameHead + frameCount++) % frameEnds.length] = written;
+    }
+
+    // Bytes from the oldest byte to the end of the frame it is part of, or 0 if it starts a
+    // frame or the ring holds no frames.  Only meaningful for what writeFrame() put in.
+    public synchronized int toFrameEnd() {
+        if (consumed == lastEnd) {
+            return 0;
+        }
+        for (int i = 0; i < frameCount; i++) {
+            long end = frameEnds[(frameHead + i) % frameEnds.length];
+            if (end >= consumed) {
+                return (int) (end - consumed);
+            }
+        }
+        return 0;
+    }
+
+    // Append as much of data as fits under the limit and return the number of bytes taken.
+    public synchronized int offer(byte[] data, int offset, int len) {
+        int taken = Math.min(len, remaining());
+        write(data, offset, taken);
+        return taken;
+    }
+
+    // Append data, discarding the oldest bytes as needed to stay under the limit.  If data alone
+    // is larger than the limit only its newest bytes are kept.  Returns the number of bytes
+    // discarded, counting both old bytes and skipped bytes of data.
+    public synchronized int writeEvicting(byte[] data, int offset, int len) {
+        int skipped = Math.max(0, len - limit);
+        offset += skipped;
+        len -= skipped;
+        int evicted = Math.max(0, size + len - limit);
+        skip(evicted);
+        write(data, offset, len);
+        return skipped + evicted;
+    }
+
+    // Put len bytes of data back in front of the oldest byte, as if they had never been read,
+    // growing the ring if needed.  They count as written now.  Frame ends only come back with
+    // them if they are no more than the last read() took.
+    public synchronized void unread(byte[] data, int offset, int len) {
+        if (len <= 0) {
+            return;
+        }
+        if (stampCount < MAX_STAMPS) {
+            stampHead = (stampHead + MAX_STAMPS - 1) % MAX_STAMPS;
+            stampCount++;
+            stampNanos[stampHead] = System.nanoTime();
+            stampBytes[stampHead] = len;
+        } else {
+            stampBytes[stampHead] += len;
+        }
+        ensureCapacity(size + len);
+
+        head = (head + buffer.length - len) % buffer.length;
+        int first = Math.min(len, buffer.length - head);
+        System.arraycopy(data, offset, buffer, head, first);
+        System.arraycopy(data, offset + first, buffer, 0, len - first);
+        size += len;
+        consumed -= len;
+    }
+
+    // Discard up to n of the oldest bytes.  Returns the number of bytes discarded.
+    public synchronized int skip(int n) {
+        int len = Math.min(n, size);
+        if (len <= 0) {
+            return 0;
+        }
+        head = (head + len) % buffer.length;
+        size -= len;
+        if (size == 0) {
+            head = 0;
+        }
+        retire(len);
+        return len;
+    }
+
+    // Move up to max bytes into dest starting at offset.  Returns the number of bytes copied.
+    public synchronized int read(byte[] dest, int offset, int max) {
+        int len = Math.min(max, size);
+        if (len <= 0) {
+            return 0;
+        }
+
+        int first = Math.min(len, buffer.length - head);
+        System.arraycopy(buffer, head, dest, offset, first);
+        System.arraycopy(buffer, 0, dest, offset + first, len - first);
+        head = (head + len) % buffer.length;
+        size -= len;
+        if (size == 0) {
+            head = 0;
+        }
+        retire(len);
+        return len;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+        stampCount = 0;
+        consumed = lastEnd = written;
+        frameCount = 0;
+    }
+
+    // Retire the stamps and frame ends of len bytes leaving the front of the ring.
+    private void retire(int len) {
+        while (frameCount > 0 && frameEnds[frameHead] <= consumed) {
+            lastEnd = frameEnds[frameHead];
+            frameHead = (frameHead + 1) % frameEnds.length;
+            frameCount--;
+        }
+        consumed += len;
+        while (len > 0 && stampCount > 0) {
+            int taken = Math.min(len, stampBytes[stampHead]);
+            stampBytes[stampHead] -= taken;
+            len -= taken;
+            if (stampBytes[stampHead] == 0) {
+                stampHead = (stampHead + 1) % MAX_STAMPS;
+                stampCount--;
+            }
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= buffer.length) {
+            return;
+        }
+        int newCapacity = buffer.length;
+        while (newCapacity < needed) {
+            newCapacity *= 2;
+        }
+        byte[] grown = new byte[newCapacity];
+        int first = Math.min(size, buffer.length - head);
+        System.arraycopy(buffer, head, grown, 0, first);
+        System.arraycopy(buffer, 0, grown, first, size - first);
+        buffer = grown;
+        head = 0;
+    }
+}
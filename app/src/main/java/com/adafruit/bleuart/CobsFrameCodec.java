@@ -0,0 +1,148 @@
+package com.adafruit.bleuart;
+
+// Frames messages with Consistent Overhead Byte Stuffing: the payload and its CRC-16 are encoded
+// so they contain no zero bytes, and a zero ends each frame.  Costs at most one byte in 254 plus
+// three bytes per frame, and a receiver that loses bytes picks up again at the next zero.
+public class CobsFrameCodec implements FrameCodec {
+    public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 4096;
+
+    private static final byte DELIMITER = 0;
+    private static final int CRC_SIZE = 2;
+    private static final int MAX_BLOCK_CODE = 0xFF; // Block of 254 data bytes without a zero after it
+
+    private final int maxPayloadLength;
+
+    public CobsFrameCodec() {
+        this(DEFAULT_MAX_PAYLOAD_LENGTH);
+    }
+
+    public CobsFrameCodec(int maxPayloadLength) {
+        if (maxPayloadLength <= 0) {
+            throw new IllegalArgumentException("maxPayloadLength must be positive");
+        }
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    public int getMaxPayloadLength() {
+        return maxPayloadLength;
+    }
+
+    public int maxEncodedLength(int payloadLength) {
+        int stuffed = payloadLength + CRC_SIZE;
+        return stuffed + (stuffed / (MAX_BLOCK_CODE - 1)) + 1 + 1; // Code bytes, then the delimiter
+    }
+
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length > maxPayloadLength) {
+            throw new IllegalArgumentException("payload of " + length + " bytes is longer than " + maxPayloadLength);
+        }
+        int crc = Crc16.compute(src, offset, length);
+        int total = length + CRC_SIZE;
+        int codeIndex = dstOffset;
+        int out = dstOffset + 1;
+        int code = 1;
+        for (int i = 0; i < total; i++) {
+            byte b;
+            if (i < length) {
+                b = src[offset + i];
+            } else {
+                b = (byte) ((i == length) ? (crc >>> 8) : crc);
+            }
+
+            if (b == DELIMITER) {
+                dst[codeIndex] = (byte) code;
+                codeIndex = out++;
+                code = 1;
+            } else {
+                dst[out++] = b;
+                code++;
+                if (code == MAX_BLOCK_CODE) {
+                    dst[codeIndex] = (byte) code;
+                    codeIndex = out++;
+                    code = 1;
+                }
+            }
+        }
+        dst[codeIndex] = (byte) code;
+        dst[out++] = DELIMITER;
+        return out - dstOffset;
+    }
+
+    public FrameDecoder newDecoder() {
+        return new Decoder(maxPayloadLength + CRC_SIZE);
+    }
+
+    private static class Decoder implements FrameDecoder {
+        private final byte[] buffer; // Decoded payload followed by its CRC
+        private int length;
+        private int code; // Code byte of the current block, 0 before the first one
+        private int left; // Data bytes still to come in the current block
+        private boolean discarding; // Frame overran the buffer, skip to the next delimiter
+        private long errors;
+
+        Decoder(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        public void decode(byte[] data, int offset, int count, Listener listener) {
+            for (int i = offset; i < offset + count; i++) {
+                byte b = data[i];
+                if (b == DELIMITER) {
+                    endFrame(listener);
+                } else if (discarding) {
+                    continue;
+                } else if (left == 0) {
+                    // Start of a block.  Every block but a full one stood for a zero after its data.
+                    if (code != 0 && code != MAX_BLOCK_CODE && !append(DELIMITER)) {
+                        continue;
+                    }
+                    code = b & 0xFF;
+                    left = code - 1;
+                } else {
+                    append(b);
+                    left--;
+                }
+            }
+        }
+
+        private boolean append(byte b) {
+            if (length == buffer.length) {
+                discarding = true;
+                return false;
+            }
+            buffer[length++] = b;
+            return true;
+        }
+
+        private void endFrame(Listener listener) {
+            if (code == 0 && !discarding) {
+                // Back to back delimiters, nothing in between.
+                return;
+            }
+
+            if (discarding || left != 0 || length < CRC_SIZE) {
+                errors++;
+            } else {
+                int payloadLength = length - CRC_SIZE;
+                int crc = ((buffer[payloadLength] & 0xFF) << 8) | (buffer[payloadLength + 1] & 0xFF);
+                if (crc == Crc16.compute(buffer, 0, payloadLength)) {
+                    listener.onFrame(buffer, 0, payloadLength);
+                } else {
+                    errors++;
+                }
+            }
+            reset();
+        }
+
+        public void reset() {
+            length = 0;
+            code = 0;
+            left = 0;
+            discarding = false;
+        }
+
+        public long getErrorCount() {
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.adafruit.bleuart;
+
+// When one connection reached each phase of its setup, as System.nanoTime() values.  Only the
+// first time a phase is reached counts.  Phases that don't apply to a role or a connection are
+// never reached: a peripheral only sees CONNECTED onwards, and connect() skips the scan.
+public class ConnectionTimeline {
+    public enum Phase {
+        SCAN_STARTED,          // Central started the scan that found the peer
+        ADVERTISEMENT_SEEN,    // First advertisement from the peer with the UART service
+        CONNECT_REQUESTED,     // connectGatt, or a reconnect attempt
+        CONNECTED,             // STATE_CONNECTED
+        SERVICES_DISCOVERED,   // onServicesDiscovered, or the cached services were found still good
+        NOTIFICATIONS_ENABLED, // CCCD write acknowledged (central) or received (peripheral)
+        FIRST_BYTE             // First UART data sent or received
+    }
+
+    private static final long NOT_REACHED = 0;
+
+    private final long[] timestamps = new long[Phase.values().length];
+
+    public ConnectionTimeline() {
+    }
+
+    private ConnectionTimeline(ConnectionTimeline other) {
+        System.arraycopy(other.timestamps, 0, timestamps, 0, timestamps.length);
+    }
+
+    // Record that the phase was reached at the given time.  Returns false if it already had been.
+    public synchronized boolean mark(Phase phase, long nanos) {
+        if (timestamps[phase.ordinal()] != NOT_REACHED) {
+            return false;
+        }
+        // nanoTime() can be 0, which would read as not reached.
+        timestamps[phase.ordinal()] = (nanos == NOT_REACHED) ? 1 : nanos;
+        return true;
+    }
+
+    public synchronized boolean reached(Phase phase) {
+        return timestamps[phase.ordinal()] != NOT_REACHED;
+    }
+
+    // When the phase was reached, or 0 if it hasn't been.
+    public synchronized long getTimestamp(Phase phase) {
+        return timestamps[phase.ordinal()];
+    }
+
+    // Nanoseconds from one phase to another, or -1 unless both were reached.
+    public synchronized long elapsed(Phase from, Phase to) {
+        long start = timestamps[from.ordinal()];
+        long end = timestamps[to.ordinal()];
+        return (start == NOT_REACHED || end == NOT_REACHED) ? -1 : end - start;
+    }
+
+    // The latest phase reached before the given one, or null if none was.
+    public synchronized Phase previous(Phase phase) {
+        Phase[] phases = Phase.values();
+        for (int i = phase.ordinal() - 1; i >= 0; i--) {
+            if (timestamps[i] != NOT_REACHED) {
+                return phases[i];
+            }
+        }
+        return null;
+    }
+
+    // The first phase reached, or null if none was.
+    public synchronized Phase first() {
+        for (Phase phase : Phase.values()) {
+            if (timestamps[phase.ordinal()] != NOT_REACHED) {
+                return phase;
+            }
+        }
+        return null;
+    }
+
+    // A copy that later phases won't change.
+    public synchronized ConnectionTimeline snapshot() {
+        return new ConnectionTimeline(this);
+    }
+
+    // Each phase reached, as milliseconds after the first one.
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        Phase origin = first();
+        for (Phase phase : Phase.values()) {
+            long elapsed = (origin == null) ? -1 : elapsed(origin, phase);
+            if (elapsed >= 0) {
+                sb.append(phase).append(" +").append(elapsed / 1000000).append(" ms\n");
+            }
+        }
+        return sb.toString();
+    }
+}
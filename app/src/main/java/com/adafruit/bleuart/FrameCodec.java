@@ -0,0 +1,19 @@
+package com.adafruit.bleuart;
+
+// Turns messages into bytes for the UART stream and back.  With a codec set on a UartBase, every
+// send() goes out as one frame and onReceive is handed whole messages whose CRC checked out, no
+// matter how the link split them into notifications.
+public interface FrameCodec {
+    // Largest number of bytes encode() can produce for a payload of the given length.
+    public int maxEncodedLength(int payloadLength);
+
+    // Largest payload a frame may carry.  Longer frames are discarded by the decoder.
+    public int getMaxPayloadLength();
+
+    // Encode src[offset, offset + length) as one frame into dst starting at dstOffset and return
+    // the number of bytes written.  dst must have room for maxEncodedLength(length) bytes.
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset);
+
+    // Create a decoder for one incoming stream.  Each peer needs its own.
+    public FrameDecoder newDecoder();
+}
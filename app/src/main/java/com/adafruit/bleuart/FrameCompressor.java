@@ -0,0 +1,164 @@
+package com.adafruit.bleuart;
+
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-message compression for a framed UART link.  Each message is deflated on its own against a
+// static dictionary of common telemetry text, so short messages still find matches and no state
+// carries over between frames.  A message that doesn't get smaller is sent as is.
+//
+// The two ends agree on compression with control messages sent as ordinary frames:
+//   HELLO  "I can decompress", with a capability byte.  The central sends it once connected and
+//          a peer with compression enabled answers with its own HELLO.
+//   START  sent by each side just before its first compressed frame.  From then on every frame
+//          from that side starts with a one byte header saying whether it is compressed.
+//   ESCAPE prefixes a plain message that itself begins with the magic, so user data is never
+//          taken for HELLO or START.  The receiver strips it and delivers the rest.
+// A peer that doesn't know the protocol never answers HELLO, so both sides stay uncompressed.
+public class FrameCompressor {
+    // Capabilities carried in HELLO.
+    public static final int CAP_DEFLATE = 0x01; // Raw deflate with the static dictionary below
+
+    // Control messages, see controlType().
+    public static final int CONTROL_NONE = 0;
+    public static final int CONTROL_HELLO = 1;
+    public static final int CONTROL_START = 2;
+    public static final int CONTROL_ESCAPE = 3;
+
+    private static final byte[] CONTROL_MAGIC = {(byte) 0xC0, 'U', 'Z'};
+    public static final int CONTROL_LENGTH = CONTROL_MAGIC.length + 2; // Magic, type, capabilities
+    public static final int ESCAPE_LENGTH = CONTROL_MAGIC.length + 1; // Magic, type
+
+    private static final byte HEADER_RAW = 0;
+    private static final byte HEADER_DEFLATE = 1;
+    private static final int MIN_COMPRESS_LENGTH = 8; // Shorter messages never shrink
+
+    // Both ends must use exactly these bytes.  Strings most likely to appear belong at the end.
+    private static final byte[] DICTIONARY = ("0123456789.-+,;: \r\n"
+            + "ERROR WARN INFO DEBUG OK true false null "
+            + "time timestamp seq id value status battery voltage current power rssi "
+            + "temperature temp humidity pressure altitude lat lon speed heading "
+            + "accel gyro mag x y z "
+            + "{\"t\":,\"id\":,\"v\":,\"x\":,\"y\":,\"z\":}\r\n"
+            + "0.00,0.000,-0.00,1.00,100,").getBytes(Charset.forName("US-ASCII"));
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] inflated; // Decompressed messages are delivered from here
+
+    public FrameCompressor(int maxPayloadLength) {
+        this.inflated = new byte[maxPayloadLength];
+    }
+
+    // The control message of the given type, advertising what we support.
+    public static byte[] controlMessage(int type) {
+        byte[] message = new byte[CONTROL_LENGTH];
+        System.arraycopy(CONTROL_MAGIC, 0, message, 0, CONTROL_MAGIC.length);
+        message[CONTROL_MAGIC.length] = (byte) type;
+        message[CONTROL_MAGIC.length + 1] = (byte) CAP_DEFLATE;
+        return message;
+    }
+
+    // True if a plain message begins with the magic and so has to be escaped before sending.
+    public static boolean needsEscape(byte[] data, int offset, int length) {
+        if (length < CONTROL_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < CONTROL_MAGIC.length; i++) {
+            if (data[offset + i] != CONTROL_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The message behind an ESCAPE prefix.
+    public static byte[] escape(byte[] data, int offset, int length) {
+        byte[] message = new byte[ESCAPE_LENGTH + length];
+        System.arraycopy(CONTROL_MAGIC, 0, message, 0, CONTROL_MAGIC.length);
+        message[CONTROL_MAGIC.length] = (byte) CONTROL_ESCAPE;
+        System.arraycopy(data, offset, message, ESCAPE_LENGTH, length);
+        return message;
+    }
+
+    // The type of control message in data[offset, offset + length), or CONTROL_NONE if it is an
+    // ordinary message.  For CONTROL_ESCAPE the message proper starts ESCAPE_LENGTH bytes in.
+    public static int controlType(byte[] data, int offset, int length) {
+        if (length < ESCAPE_LENGTH || !needsEscape(data, offset, length)) {
+            return CONTROL_NONE;
+        }
+        int type = data[offset + CONTROL_MAGIC.length] & 0xFF;
+        if (type == CONTROL_ESCAPE) {
+            return type;
+        }
+        if (length != CONTROL_LENGTH) {
+            return CONTROL_NONE;
+        }
+        return (type == CONTROL_HELLO || type == CONTROL_START) ? type : CONTROL_NONE;
+    }
+
+    // The capabilities a control message advertises.
+    public static int controlCapabilities(byte[] data, int offset) {
+        return data[offset + CONTROL_MAGIC.length + 1] & 0xFF;
+    }
+
+    public int maxEncodedLength(int length) {
+        return length + 1;
+    }
+
+    // Write src[offset, offset + length) to dst behind a header, deflated if that makes it
+    // smaller.  Returns the number of bytes written; dst needs maxEncodedLength(length) of room.
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length >= MIN_COMPRESS_LENGTH) {
+            synchronized (deflater) {
+                deflater.reset();
+                deflater.setDictionary(DICTIONARY);
+                deflater.setInput(src, offset, length);
+                deflater.finish();
+                // Only room for output smaller than the message, anything else isn't worth it.
+                int compressed = deflater.deflate(dst, dstOffset + 1, length - 1);
+                if (deflater.finished()) {
+                    dst[dstOffset] = HEADER_DEFLATE;
+                    return compressed + 1;
+                }
+            }
+        }
+        dst[dstOffset] = HEADER_RAW;
+        System.arraycopy(src, offset, dst, dstOffset + 1, length);
+        return length + 1;
+    }
+
+    // Undo encode() on data[offset, offset + length) and hand the message to the listener.
+    // Returns false, without calling the listener, if the frame doesn't decompress.  Decode from
+    // one thread at a time; the message is delivered from a buffer the next decode() reuses.
+    public boolean decode(byte[] data, int offset, int length, FrameDecoder.Listener listener) {
+        if (length < 1) {
+            return false;
+        }
+        if (data[offset] == HEADER_RAW) {
+            listener.onFrame(data, offset + 1, length - 1);
+            return true;
+        }
+        if (data[offset] != HEADER_DEFLATE) {
+            return false;
+        }
+
+        int size;
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data, offset + 1, length - 1);
+        try {
+            size = inflater.inflate(inflated);
+        } catch (DataFormatException e) {
+            return false;
+        }
+        if (!inflater.finished()) {
+            // Truncated, or longer than the largest message we accept.
+            return false;
+        }
+        listener.onFrame(inflated, 0, size);
+        return true;
+    }
+}
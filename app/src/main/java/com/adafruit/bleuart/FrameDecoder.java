@@ -0,0 +1,22 @@
+package com.adafruit.bleuart;
+
+// Incremental decoder for one stream of frames.  Bytes can be fed in chunks of any size; each
+// complete frame is reassembled in a buffer the decoder allocated up front and handed to the
+// listener as a view, so decoding doesn't allocate.  Not thread safe, feed it from one thread.
+public interface FrameDecoder {
+    public interface Listener {
+        // A complete message is data[offset, offset + length).  The buffer is reused for the next
+        // frame, so copy out anything needed after returning.
+        public void onFrame(byte[] data, int offset, int length);
+    }
+
+    // Feed data[offset, offset + length) to the decoder, calling the listener for every frame it
+    // completes.
+    public void decode(byte[] data, int offset, int length, Listener listener);
+
+    // Drop any partly received frame.
+    public void reset();
+
+    // Frames discarded because they were malformed, too long or failed the CRC.
+    public long getErrorCount();
+}
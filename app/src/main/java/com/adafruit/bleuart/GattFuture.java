@@ -0,0 +1,89 @@
+package com.adafruit.bleuart;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Completion of a queued GATT operation.  The result is the GATT status the operation finished
+// with, or one of the GattOperation.STATUS_* values if it never ran to completion.  A listener can
+// be attached to react on the thread that completes the operation instead of blocking in get().
+public class GattFuture implements Future<Integer> {
+    public interface Listener {
+        public void onComplete(int status);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile int status;
+    private volatile boolean cancelled;
+    private Listener listener;
+
+    // Set the listener, calling it straight away if the operation already finished.
+    public void setListener(Listener listener) {
+        boolean finished;
+        synchronized (this) {
+            this.listener = listener;
+            finished = isDone();
+        }
+        if (finished && listener != null) {
+            listener.onComplete(status);
+        }
+    }
+
+    // Called by the operation queue.  Only the first completion counts.
+    void complete(int status) {
+        Listener toCall;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.status = status;
+            this.cancelled = (status == GattOperation.STATUS_CANCELLED);
+            done.countDown();
+            toCall = listener;
+        }
+        if (toCall != null) {
+            toCall.onComplete(status);
+        }
+    }
+
+    // Complete the operation with STATUS_CANCELLED.  One still waiting is skipped when its turn
+    // comes; one already handed to the stack can't be taken back, so it still runs to its callback
+    // or timeout before the queue moves on, but its result is lost.
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        complete(GattOperation.STATUS_CANCELLED);
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Integer get() throws InterruptedException {
+        done.await();
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        return status;
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        return status;
+    }
+}
@@ -0,0 +1,111 @@
+package com.adafruit.bleuart;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+// A single GATT request waiting its turn in a GattOperationQueue.  Android only allows one
+// outstanding GATT operation per connection, so every read, write, descriptor write and MTU
+// request goes through the queue and starts only once the previous one has called back.
+public abstract class GattOperation implements Comparable<GattOperation> {
+    // Priorities, lower values run first.  Connection setup goes ahead of UART data, which goes
+    // ahead of informational reads like the Device Information service.
+    public static final int PRIORITY_SETUP = 0;
+    public static final int PRIORITY_DATA = 1;
+    public static final int PRIORITY_INFO = 2;
+
+    // Kinds of operation, matched against the callback that completes them.
+    public static final int TYPE_READ = 1;
+    public static final int TYPE_WRITE = 2;
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    public static final int TYPE_REQUEST_MTU = 4;
+
+    // Completion statuses for operations that didn't get a GATT status.
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_CANCELLED = -2;
+    public static final int STATUS_REFUSED = -3;
+
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    final int type;
+    final int priority;
+    final long timeoutMillis;
+    final GattFuture future = new GattFuture();
+    long sequence; // Keeps operations of equal priority in the order they were queued
+    int attempts;
+
+    // Fails the operation if its callback never arrives.
+    final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            if (queue != null) {
+                queue.finish(GattOperation.this, STATUS_TIMEOUT);
+            }
+        }
+    };
+    GattOperationQueue queue;
+
+    protected GattOperation(int type, int priority, long timeoutMillis) {
+        this.type = type;
+        this.priority = priority;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // Hand the operation to the stack.  Returns false if the stack refused it.
+    abstract boolean execute(BluetoothGatt gatt);
+
+    public GattFuture getFuture() {
+        return future;
+    }
+
+    @Override
+    public int compareTo(GattOperation other) {
+        if (priority != other.priority) {
+            return (priority < other.priority) ? -1 : 1;
+        }
+        return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+    }
+
+    public static GattOperation read(final BluetoothGattCharacteristic characteristic, int priority) {
+        return new GattOperation(TYPE_READ, priority, DEFAULT_TIMEOUT_MS) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(characteristic);
+            }
+        };
+    }
+
+    // The value is only set on the characteristic once the write starts, so queued writes to the
+    // same characteristic don't overwrite each other.
+    public static GattOperation write(final BluetoothGattCharacteristic characteristic, final byte[] value,
+                                      final int writeType, int priority) {
+        return new GattOperation(TYPE_WRITE, priority, DEFAULT_TIMEOUT_MS) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                characteristic.setValue(value);
+                characteristic.setWriteType(writeType);
+                return gatt.writeCharacteristic(characteristic);
+            }
+        };
+    }
+
+    public static GattOperation writeDescriptor(final BluetoothGattDescriptor descriptor, final byte[] value,
+                                                int priority) {
+        return new GattOperation(TYPE_WRITE_DESCRIPTOR, priority, DEFAULT_TIMEOUT_MS) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+        };
+    }
+
+    public static GattOperation requestMtu(final int mtu, int priority) {
+        return new GattOperation(TYPE_REQUEST_MTU, priority, DEFAULT_TIMEOUT_MS) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.requestMtu(mtu);
+            }
+        };
+    }
+}
@@ -0,0 +1,206 @@
+package com.adafruit.bleuart;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Runs every GATT operation for one connection strictly one at a time, highest priority first.
+// UART data isn't queued here frame by frame; instead the DataSource is asked for the next frame
+// whenever no setup operation is waiting, so frames are packed as late as possible and data still
+// goes ahead of PRIORITY_INFO reads.
+//
+// Operations are started only on the handler's thread, so the DataSource is never asked for a
+// frame from anywhere else.  Moving the queue from IDLE to BUSY owns it until the running
+// operation's callback (or timeout) arrives, which guarantees a single GATT operation in flight.  A callback only
+// completes the running operation once the stack has accepted it, so one that turns up late for an
+// operation that already timed out isn't taken for the next operation of the same type.
+public class GattOperationQueue {
+    private static final String TAG = "GattQueue";
+
+    private static final int IDLE = 0;
+    private static final int BUSY = 1;
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MS = 5; // Wait before retrying an operation the stack refused
+
+    // Supplies UART data frames.
+    public interface DataSource {
+        // Return true if a frame could be sent right now.
+        public boolean hasData();
+        // Return the next data write, or null if there is nothing to send right now.
+        public GattOperation nextDataOperation();
+    }
+
+    private final Handler handler;
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private final AtomicLong sequence = new AtomicLong();
+    private final PriorityBlockingQueue<GattOperation> pending = new PriorityBlockingQueue<GattOperation>();
+    private final AtomicReference<GattOperation> current = new AtomicReference<GattOperation>();
+    private volatile long issued = -1; // Sequence number of the operation the stack has, or -1
+    private volatile BluetoothGatt gatt;
+    private volatile DataSource dataSource;
+
+    // Retries the running operation after the stack refused it.
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            GattOperation op = current.get();
+            if (op != null) {
+                execute(op);
+            }
+        }
+    };
+
+    // kick() from another thread, run on the handler's.
+    private final Runnable kickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            kick();
+        }
+    };
+
+    public GattOperationQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void setGatt(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    // Queue an operation and start it if nothing else is running.
+    public GattFuture enqueue(GattOperation op) {
+        op.sequence = sequence.getAndIncrement();
+        op.queue = this;
+        pending.offer(op);
+        kick();
+        return op.future;
+    }
+
+    // Start the next operation if the queue is idle.  Safe to call from any thread; off the
+    // handler's thread it is posted there.
+    public void kick() {
+        if (Looper.myLooper() != handler.getLooper()) {
+            handler.post(kickRunnable);
+            return;
+        }
+        if (state.compareAndSet(IDLE, BUSY)) {
+            startNext();
+        }
+    }
+
+    // Route a GATT callback to the running operation.
+    public void onComplete(int type, int status) {
+        GattOperation op = current.get();
+        if (op == null || op.type != type || op.sequence != issued) {
+            // Nothing running, or the late callback of an operation that already timed out.
+            Log.w(TAG, "Unexpected completion of type " + type);
+            return;
+        }
+        finish(op, status);
+    }
+
+    // Drop everything on disconnect.  Queued operations complete with STATUS_CANCELLED.
+    public void clear() {
+        GattOperation op = current.getAndSet(null);
+        issued = -1;
+        if (op != null) {
+            handler.removeCallbacks(op.timeout);
+            op.future.complete(GattOperation.STATUS_CANCELLED);
+        }
+        handler.removeCallbacks(retry);
+        while ((op = pending.poll()) != null) {
+            op.future.complete(GattOperation.STATUS_CANCELLED);
+        }
+        state.set(IDLE);
+    }
+
+    void finish(GattOperation op, int status) {
+        if (!current.compareAndSet(op, null)) {
+            // Already finished by its callback or its timeout.
+            return;
+        }
+        issued = -1;
+        handler.removeCallbacks(op.timeout);
+        handler.removeCallbacks(retry);
+        if (status == GattOperation.STATUS_TIMEOUT) {
+            Log.w(TAG, "Operation of type " + op.type + " timed out");
+        }
+        op.future.complete(status);
+        startNext();
+    }
+
+    // Pick and start the next operation.  Only called by the owner of BUSY.
+    private void startNext() {
+        GattOperation op;
+        while ((op = selectNext()) != null) {
+            if (!op.future.isDone()) {
+                break;
+            }
+            // Cancelled while it was waiting.
+        }
+
+        if (op == null) {
+            state.set(IDLE);
+            // Look again in case something was queued after we checked.
+            DataSource source = dataSource;
+            if (!pending.isEmpty() || (source != null && source.hasData())) {
+                kick();
+            }
+            return;
+        }
+
+        current.set(op);
+        execute(op);
+    }
+
+    private GattOperation selectNext() {
+        GattOperation head = pending.peek();
+        if (head != null && head.priority < GattOperation.PRIORITY_DATA) {
+            return pending.poll();
+        }
+        DataSource source = dataSource;
+        if (source != null && gatt != null) {
+            GattOperation data = source.nextDataOperation();
+            if (data != null) {
+                data.sequence = sequence.getAndIncrement();
+                data.queue = this;
+                return data;
+            }
+        }
+        return pending.poll();
+    }
+
+    private void execute(GattOperation op) {
+        BluetoothGatt gatt = this.gatt;
+        if (gatt == null) {
+            finish(op, GattOperation.STATUS_CANCELLED);
+            return;
+        }
+
+        op.attempts++;
+        // Marked before the call, as the callback can arrive before it returns.
+        issued = op.sequence;
+        if (op.execute(gatt)) {
+            handler.postDelayed(op.timeout, op.timeoutMillis);
+            return;
+        }
+        issued = -1;
+        if (op.attempts < MAX_ATTEMPTS) {
+            // The stack is still busy with something we didn't issue, try again shortly.
+            handler.postDelayed(retry, RETRY_DELAY_MS);
+        } else {
+            Log.w(TAG, "Operation of type " + op.type + " refused by the stack");
+            finish(op, GattOperation.STATUS_REFUSED);
+        }
+    }
+}
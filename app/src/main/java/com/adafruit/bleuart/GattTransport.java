@@ -0,0 +1,45 @@
+package com.adafruit.bleuart;
+
+// The packet level of a UART link, below everything UartEngine does with rings, framing and
+// compression.  Each role implements it over android.bluetooth: the central writes packets to
+// the peer's TX characteristic, the peripheral notifies them on RX.  SimulatedRadio, in the unit
+// tests, implements it with no radio at all, so the engine can run in a plain JVM.
+//
+// Peers are named by Bluetooth address.  A transport pulls packets from its endpoint whenever it
+// can take one for a peer, so the endpoint never has to hold on to a packet the link isn't ready
+// for, and it calls every Endpoint method from the one thread, its own.
+public interface GattTransport {
+    // What a transport sends from and delivers to.  UartEngine implements it.
+    public interface Endpoint {
+        // True if nextPacket would return a packet for the peer right now.
+        public boolean hasPacket(String peer, int maxLength);
+
+        // The next packet for the peer, at most maxLength bytes, or null if there is nothing to
+        // send yet.  The transport may keep the array but not change it; reliable mode sends the
+        // same one again.
+        public byte[] nextPacket(String peer, int maxLength);
+
+        // The packet last taken for the peer was acknowledged (write response, or the stack
+        // taking the write or notification), or failed.  A failed packet is sent again, so the
+        // transport should come back for it once the link can take it.
+        public void onPacketSent(String peer, boolean success);
+
+        // A packet arrived from the peer as data[offset, offset + length).  The array may be
+        // reused once this returns.
+        public void onPacketReceived(String peer, byte[] data, int offset, int length);
+    }
+
+    // Attach the endpoint packets come from and go to.  Called once, before anything is sent.
+    public void setEndpoint(Endpoint endpoint);
+
+    // Data is waiting for the peer, or for every peer if null: start pulling packets for it once
+    // the link can take them.  Any thread.
+    public void requestSend(String peer);
+
+    // Run the task on the transport's thread once the delay has passed, replacing any earlier
+    // schedule of the same task.  Any thread.
+    public void schedule(Runnable task, long delayMillis);
+
+    // Forget a scheduled task that hasn't run yet.  Any thread.
+    public void cancel(Runnable task);
+}
@@ -0,0 +1,123 @@
+package com.adafruit.bleuart;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Distribution of durations in nanoseconds.  Buckets are powers of two split eight ways, so any
+// value lands in a bucket within 12.5% of it, from single nanoseconds to centuries, in a fixed
+// 4 KB.  Recording is lock free and can happen from any thread alongside reads; a read that races
+// a record may see it in some totals and not others.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long seen;
+        while (value < (seen = min.get()) && !min.compareAndSet(seen, value)) {
+            // Lost a race with another record, look again.
+        }
+        while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+            // Lost a race with another record, look again.
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Smallest value that lands in the bucket.
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    // Smallest and largest values recorded, 0 while empty.
+    public long getMin() {
+        return (count.get() == 0) ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return (count.get() == 0) ? 0 : max.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : sum.get() / n;
+    }
+
+    // The value below which the given fraction (0 to 1) of recorded values fall, to within a
+    // bucket.  0 while empty.
+    public long getPercentile(double fraction) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                // Report the bucket's lower bound, but never outside what was actually recorded.
+                return Math.min(Math.max(lowerBound(bucket), getMin()), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    // Append the summary as a JSON object.
+    public void appendJson(StringBuilder sb) {
+        sb.append("{\"count\":").append(getCount())
+                .append(",\"min\":").append(getMin())
+                .append(",\"mean\":").append(getMean())
+                .append(",\"p50\":").append(getPercentile(0.5))
+                .append(",\"p90\":").append(getPercentile(0.9))
+                .append(",\"p99\":").append(getPercentile(0.99))
+                .append(",\"max\":").append(getMax())
+                .append('}');
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " min=" + getMin()
+                + " p50=" + getPercentile(0.5)
+                + " p90=" + getPercentile(0.9)
+                + " p99=" + getPercentile(0.99)
+                + " max=" + getMax();
+    }
+}
@@ -0,0 +1,133 @@
+package com.adafruit.bleuart;
+
+// Frames messages with their length up front, as an unsigned LEB128 varint, and a CRC-16 of the
+// payload after them.  Cheaper than COBS for binary payloads full of zeros, but a receiver that
+// loses bytes can't find the next frame boundary by itself; the CRC catches the damage and the
+// decoder starts over at the following byte.
+public class LengthPrefixFrameCodec implements FrameCodec {
+    public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 4096;
+
+    private static final int CRC_SIZE = 2;
+    private static final int MAX_VARINT_SIZE = 5;
+
+    private final int maxPayloadLength;
+
+    public LengthPrefixFrameCodec() {
+        this(DEFAULT_MAX_PAYLOAD_LENGTH);
+    }
+
+    public LengthPrefixFrameCodec(int maxPayloadLength) {
+        if (maxPayloadLength <= 0) {
+            throw new IllegalArgumentException("maxPayloadLength must be positive");
+        }
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    public int getMaxPayloadLength() {
+        return maxPayloadLength;
+    }
+
+    public int maxEncodedLength(int payloadLength) {
+        return varintSize(payloadLength) + payloadLength + CRC_SIZE;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length > maxPayloadLength) {
+            throw new IllegalArgumentException("payload of " + length + " bytes is longer than " + maxPayloadLength);
+        }
+        int out = dstOffset;
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            dst[out++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[out++] = (byte) value;
+
+        System.arraycopy(src, offset, dst, out, length);
+        out += length;
+
+        int crc = Crc16.compute(src, offset, length);
+        dst[out++] = (byte) (crc >>> 8);
+        dst[out++] = (byte) crc;
+        return out - dstOffset;
+    }
+
+    public FrameDecoder newDecoder() {
+        return new Decoder(maxPayloadLength);
+    }
+
+    private static class Decoder implements FrameDecoder {
+        private final byte[] buffer; // Payload followed by its CRC
+        private final int maxPayloadLength;
+        private boolean readingLength = true;
+        private int payloadLength; // Length decoded so far, then the length of the frame's payload
+        private int shift;
+        private int received; // Bytes of payload and CRC received so far
+        private long errors;
+
+        Decoder(int maxPayloadLength) {
+            this.maxPayloadLength = maxPayloadLength;
+            this.buffer = new byte[maxPayloadLength + CRC_SIZE];
+        }
+
+        public void decode(byte[] data, int offset, int count, Listener listener) {
+            int i = offset;
+            int end = offset + count;
+            while (i < end) {
+                if (readingLength) {
+                    byte b = data[i++];
+                    payloadLength |= (b & 0x7F) << shift;
+                    shift += 7;
+                    if ((b & 0x80) != 0) {
+                        if (shift >= 7 * MAX_VARINT_SIZE) {
+                            errors++;
+                            reset();
+                        }
+                        continue;
+                    }
+                    if (payloadLength < 0 || payloadLength > maxPayloadLength) {
+                        errors++;
+                        reset();
+                        continue;
+                    }
+                    readingLength = false;
+                } else {
+                    // Copy as much of the body as this chunk holds in one go.
+                    int take = Math.min(end - i, payloadLength + CRC_SIZE - received);
+                    System.arraycopy(data, i, buffer, received, take);
+                    received += take;
+                    i += take;
+                }
+
+                if (!readingLength && received == payloadLength + CRC_SIZE) {
+                    int crc = ((buffer[payloadLength] & 0xFF) << 8) | (buffer[payloadLength + 1] & 0xFF);
+                    if (crc == Crc16.compute(buffer, 0, payloadLength)) {
+                        listener.onFrame(buffer, 0, payloadLength);
+                    } else {
+                        errors++;
+                    }
+                    reset();
+                }
+            }
+        }
+
+        public void reset() {
+            readingLength = true;
+            payloadLength = 0;
+            shift = 0;
+            received = 0;
+        }
+
+        public long getErrorCount() {
+            return errors;
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.adafruit.bleuart;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.os.Bundle;
 import android.text.method.ScrollingMovementMethod;
 import android.view.Menu;
@@ -16,9 +15,12 @@ import android.widget.CompoundButton;
 import android.widget.Switch;
 
 import java.lang.Thread;
+import java.nio.charset.Charset;
 
 public class MainActivity extends Activity implements UartBase.HostCallback {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     // UI elements
     private TextView messages;
     private EditText input;
@@ -45,33 +47,18 @@ public class MainActivity extends Activity implements UartBase.HostCallback {
     // Handler for mouse click on the send button.
     public void sendClick(View view) {
         StringBuilder stringBuilder = new StringBuilder();
-        String message = input.getText().toString();
+        stringBuilder.append(input.getText().toString());
         input.setText("");
 
-        // We can only send 20 bytes per packet, so break longer messages
-        // up into 20 byte payloads
-        int len = message.length();
-        int pos = 0;
-        while(len != 0) {
-            stringBuilder.setLength(0);
-            if (len>=20) {
-                stringBuilder.append(message.toCharArray(), pos, 20 );
-                len-=20;
-                pos+=20;
-            }
-            else {
-                stringBuilder.append(message.toCharArray(), pos, len);
-                len = 0;
-            }
-            uart.send(stringBuilder.toString());
-        }
         // Terminate with a newline character if requests
         newline = (CheckBox) findViewById(R.id.newline);
         if (newline.isChecked()) {
-            stringBuilder.setLength(0);
             stringBuilder.append("\n");
-            uart.send(stringBuilder.toString());
         }
+
+        // The UART splits the message into frames that fit the negotiated MTU.  One send, so a
+        // full TX buffer rejects the message and its newline together.
+        uart.send(stringBuilder.toString());
     }
 
     public void restartClick(View view) {
@@ -108,6 +95,13 @@ public class MainActivity extends Activity implements UartBase.HostCallback {
                 break;
         }
 
+        // This runs on the UI thread, so send() must never wait for the link to drain.  A full TX
+        // buffer rejects the message instead, and backpressure disables the send button first.
+        if (uart != null) {
+            uart.setTxLimits(UartEngine.DEFAULT_TX_CAPACITY, UartEngine.DEFAULT_TX_CAPACITY / 4,
+                    UartEngine.DEFAULT_TX_CAPACITY * 3 / 4, OverflowPolicy.REJECT);
+        }
+
         // Disable the send button until we're connected.
         send = (Button)findViewById(R.id.send);
         send.setClickable(false);
@@ -199,9 +193,9 @@ public class MainActivity extends Activity implements UartBase.HostCallback {
     }
 
     @Override
-    public void onReceive(UartBase uart, BluetoothGattCharacteristic rx) {
+    public void onReceive(UartBase uart, byte[] data, int offset, int length) {
         // Called when data is received by the UART.
-        writeLine("Received: " + rx.getStringValue(0));
+        writeLine("Received: " + new String(data, offset, length, UTF_8));
     }
 
     @Override
@@ -215,4 +209,30 @@ public class MainActivity extends Activity implements UartBase.HostCallback {
     public void onDeviceInfoAvailable() {
         writeLine(uart.getDeviceInfo());
     }
+
+    @Override
+    public void onBackpressure(UartBase uart) {
+        // Called when the UART can't keep up with what we're sending, hold off until it drains.
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                send = (Button)findViewById(R.id.send);
+                send.setClickable(false);
+                send.setEnabled(false);
+            }
+        });
+    }
+
+    @Override
+    public void onWritable(UartBase uart) {
+        // Called when the UART has drained enough to accept more data.
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                send = (Button)findViewById(R.id.send);
+                send.setClickable(true);
+                send.setEnabled(true);
+            }
+        });
+    }
 }
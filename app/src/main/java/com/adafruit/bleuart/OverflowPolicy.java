@@ -0,0 +1,10 @@
+package com.adafruit.bleuart;
+
+// What send() does with data that doesn't fit in the TX buffer: wait for the link to drain it,
+// make room by discarding the oldest queued bytes, or discard the new data.  With a frame codec
+// set, DROP_OLDEST acts as REJECT for send(), since discarding queued bytes would cut a frame.
+public enum OverflowPolicy {
+    BLOCK,
+    DROP_OLDEST,
+    REJECT
+}
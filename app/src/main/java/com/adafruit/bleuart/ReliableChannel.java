@@ -0,0 +1,312 @@
+package com.adafruit.bleuart;
+
+// Selective-repeat delivery for one peer, in reliable mode.  It works on packets, below framing
+// and compression, so whatever the engine would have sent is what gets sequenced.
+//
+// Every data packet carries a type byte and a 16-bit sequence number.  Up to WINDOW of them may be
+// unacknowledged at once, so the link keeps streaming rather than waiting on each one.  The
+// receiver delivers packets in order, holds the ones that arrive past a gap, and answers with
+//   ACK  the next sequence number it expects (everything before it arrived), and a bitmap of the
+//        WINDOW - 1 packets after that one, set for each one it holds.
+// It acknowledges every ACK_EVERY packets, ACK_DELAY_MILLIS after the last unacknowledged one, or
+// at once when it sees a gap or a duplicate.  A gap below a packet the bitmap marks is a loss, as
+// GATT delivers in order, and is resent once straight away.  Anything left unacknowledged for the
+// retransmit timeout (RFC 6298, from measured round trips) is resent too, with the timeout
+// doubling each time it passes without progress.
+//
+// Not thread safe; the engine calls it from the transport's thread only.
+public class ReliableChannel {
+    public static final int WINDOW = 64; // Packets sent and not yet acknowledged, at most
+    public static final int HEADER_LENGTH = 3; // Type and sequence number, on every data packet
+    public static final int ACK_LENGTH = 11; // Type, next expected sequence number, 64-bit bitmap
+    public static final int ACK_DELAY_MILLIS = 20;
+
+    // Packet types, the first byte of every packet.
+    public static final int TYPE_DATA = 0;
+    public static final int TYPE_ACK = 1;
+
+    private static final int ACK_EVERY = WINDOW / 4;
+    private static final long MIN_RTO_NANOS = 100 * 1000000L;
+    private static final long INITIAL_RTO_NANOS = 500 * 1000000L;
+    private static final long MAX_RTO_NANOS = 8000 * 1000000L;
+
+    // Sending side, by sequence number modulo WINDOW
+    private final byte[][] sent = new byte[WINDOW][]; // Whole packets, header and all, until acknowledged
+    private final long[] sentNanos = new long[WINDOW];
+    private final boolean[] sacked = new boolean[WINDOW]; // Receiver holds it, past a gap
+    private final boolean[] resend = new boolean[WINDOW]; // Waiting to go again
+    private final boolean[] retransmitted = new boolean[WINDOW]; // Sent more than once, no RTT sample
+    private final boolean[] fastRetransmitted = new boolean[WINDOW]; // Already resent for a gap
+    private int sendBase; // Oldest unacknowledged sequence number
+    private int sendNext; // Sequence number of the next new packet
+    private int resendCount;
+    private int inFlight = -1; // Sequence number of the data packet the transport has, or -1
+    private boolean ackInFlight; // The transport has an ACK instead
+    private long smoothedRttNanos; // 0 until the first sample
+    private long rttVarianceNanos;
+    private long rtoNanos = INITIAL_RTO_NANOS;
+    private int backoff; // Timeouts since the last progress
+
+    // Receiving side
+    private final byte[][] held = new byte[WINDOW][]; // Payloads past a gap, by sequence number
+    private int receiveNext; // Sequence number of the next packet to deliver
+    private int unacknowledged; // Packets delivered or held since the last ACK
+    private boolean ackDue;
+
+    // Signed distance from one 16-bit sequence number to another.
+    private static int distance(int from, int to) {
+        return (short) (to - from);
+    }
+
+    private static int slot(int sequence) {
+        return sequence & (WINDOW - 1);
+    }
+
+    // TYPE_DATA or TYPE_ACK, or -1 if the packet is too short to be either.
+    public static int packetType(byte[] data, int offset, int length) {
+        if (length < 1) {
+            return -1;
+        }
+        int type = data[offset] & 0xFF;
+        if ((type == TYPE_DATA && length >= HEADER_LENGTH) || (type == TYPE_ACK && length == ACK_LENGTH)) {
+            return type;
+        }
+        return -1;
+    }
+
+    // Data packets sent and not yet acknowledged.
+    public int getOutstanding() {
+        return distance(sendBase, sendNext);
+    }
+
+    // True if the window has room for a new data packet.
+    public boolean canSend() {
+        return getOutstanding() < WINDOW;
+    }
+
+    // Sequence packet[HEADER_LENGTH, packet.length) as the next data packet, filling in the header
+    // in front of it, and keep it until it is acknowledged.  canSend() must be true.
+    public byte[] send(byte[] packet, long nowNanos) {
+        int sequence = sendNext;
+        packet[0] = TYPE_DATA;
+        packet[1] = (byte) (sequence >> 8);
+        packet[2] = (byte) sequence;
+        int slot = slot(sequence);
+        sent[slot] = packet;
+        sentNanos[slot] = nowNanos;
+        sendNext = (sendNext + 1) & 0xFFFF;
+        inFlight = sequence;
+        ackInFlight = false;
+        return packet;
+    }
+
+    public boolean hasResend() {
+        return resendCount > 0;
+    }
+
+    // The oldest packet waiting to be resent, or null.
+    public byte[] nextResend(long nowNanos) {
+        for (int sequence = sendBase; sequence != sendNext; sequence = (sequence + 1) & 0xFFFF) {
+            int slot = slot(sequence);
+            if (resend[slot]) {
+                resend[slot] = false;
+                resendCount--;
+                retransmitted[slot] = true;
+                sentNanos[slot] = nowNanos;
+                inFlight = sequence;
+                ackInFlight = false;
+                return sent[slot];
+            }
+        }
+        return null;
+    }
+
+    // The transport is done with the packet it last took.  A data packet it couldn't send goes
+    // again next; an ACK is rebuilt, as the receive state may have moved on.
+    public void onSent(boolean success) {
+        if (ackInFlight) {
+            ackInFlight = false;
+            if (!success) {
+                ackDue = true;
+            }
+            return;
+        }
+        int sequence = inFlight;
+        inFlight = -1;
+        if (success || sequence < 0) {
+            return;
+        }
+        int offset = distance(sendBase, sequence);
+        if (offset >= 0 && offset < getOutstanding()) {
+            markResend(slot(sequence));
+        }
+    }
+
+    private void markResend(int slot) {
+        if (!resend[slot] && !sacked[slot]) {
+            resend[slot] = true;
+            resendCount++;
+        }
+    }
+
+    // Take in an ACK.  Returns true if it acknowledged packets the window was still holding.
+    public boolean onAck(byte[] data, int offset, int length, long nowNanos) {
+        int cumulative = ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+        int acknowledged = distance(sendBase, cumulative);
+        if (acknowledged < 0 || acknowledged > getOutstanding()) {
+            // Older than one already taken, or nonsense.
+            return false;
+        }
+
+        long rttNanos = -1;
+        for (int i = 0; i < acknowledged; i++) {
+            int slot = slot(sendBase + i);
+            if (!retransmitted[slot]) {
+                rttNanos = nowNanos - sentNanos[slot];
+            }
+            if (resend[slot]) {
+                resendCount--;
+            }
+            sent[slot] = null;
+            sacked[slot] = resend[slot] = retransmitted[slot] = fastRetransmitted[slot] = false;
+        }
+        sendBase = cumulative;
+        if (rttNanos >= 0) {
+            sampleRtt(rttNanos);
+        }
+        if (acknowledged > 0) {
+            backoff = 0;
+        }
+
+        long bitmap = 0;
+        for (int i = 3; i < ACK_LENGTH; i++) {
+            bitmap = (bitmap << 8) | (data[offset + i] & 0xFF);
+        }
+        int outstanding = getOutstanding();
+        int highest = -1; // Offset of the furthest packet the receiver holds
+        for (int i = 0; i < WINDOW - 1 && i + 1 < outstanding; i++) {
+            if ((bitmap & (1L << i)) != 0) {
+                int slot = slot(sendBase + 1 + i);
+                if (resend[slot]) {
+                    resend[slot] = false;
+                    resendCount--;
+                }
+                sacked[slot] = true;
+                highest = i + 1;
+            }
+        }
+        // Every packet before the highest one held that isn't held itself was lost.
+        for (int i = 0; i < highest; i++) {
+            int slot = slot(sendBase + i);
+            if (!sacked[slot] && !fastRetransmitted[slot]) {
+                fastRetransmitted[slot] = true;
+                markResend(slot);
+            }
+        }
+        return acknowledged > 0;
+    }
+
+    private void sampleRtt(long rttNanos) {
+        if (smoothedRttNanos == 0) {
+            smoothedRttNanos = rttNanos;
+            rttVarianceNanos = rttNanos / 2;
+        } else {
+            rttVarianceNanos = (3 * rttVarianceNanos + Math.abs(smoothedRttNanos - rttNanos)) / 4;
+            smoothedRttNanos = (7 * smoothedRttNanos + rttNanos) / 8;
+        }
+        rtoNanos = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, smoothedRttNanos + 4 * rttVarianceNanos));
+    }
+
+    // How long to wait for progress before resending everything outstanding.
+    public long getRetransmitTimeoutMillis() {
+        long nanos = Math.min(MAX_RTO_NANOS, rtoNanos << Math.min(backoff, 16));
+        return (nanos + 999999) / 1000000;
+    }
+
+    // The retransmit timeout passed with packets outstanding: send every one the receiver
+    // isn't known to hold again, and wait twice as long next time.
+    public void onTimeout() {
+        for (int sequence = sendBase; sequence != sendNext; sequence = (sequence + 1) & 0xFFFF) {
+            markResend(slot(sequence));
+        }
+        backoff++;
+    }
+
+    // Take in a data packet from the peer and hand the listener every payload that is now in
+    // order, straight from data if it can.  packetType() must have said TYPE_DATA.
+    public void receive(byte[] data, int offset, int length, FrameDecoder.Listener listener) {
+        int sequence = ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+        int ahead = distance(receiveNext, sequence);
+        if (ahead < 0 || ahead >= WINDOW) {
+            // A resend of something already delivered: the peer missed our ACK, send another.
+            ackDue = true;
+            return;
+        }
+        unacknowledged++;
+        if (ahead > 0) {
+            // Past a gap.  Hold it, and tell the peer about the gap now.
+            int slot = slot(sequence);
+            if (held[slot] == null) {
+                byte[] payload = new byte[length - HEADER_LENGTH];
+                System.arraycopy(data, offset + HEADER_LENGTH, payload, 0, payload.length);
+                held[slot] = payload;
+            }
+            ackDue = true;
+            return;
+        }
+
+        listener.onFrame(data, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+        receiveNext = (receiveNext + 1) & 0xFFFF;
+        byte[] payload;
+        while ((payload = held[slot(receiveNext)]) != null) {
+            // The gap is filled; let the peer free its window straight away.
+            held[slot(receiveNext)] = null;
+            listener.onFrame(payload, 0, payload.length);
+            receiveNext = (receiveNext + 1) & 0xFFFF;
+            ackDue = true;
+        }
+        if (unacknowledged >= ACK_EVERY) {
+            ackDue = true;
+        }
+    }
+
+    // True if an ACK should go out now.
+    public boolean isAckDue() {
+        return ackDue;
+    }
+
+    // True if packets have arrived since the last ACK, due or not.
+    public boolean hasUnacknowledged() {
+        return unacknowledged > 0 || ackDue;
+    }
+
+    // The ack delay passed: acknowledge whatever has arrived.
+    public void onAckTimeout() {
+        if (unacknowledged > 0) {
+            ackDue = true;
+        }
+    }
+
+    // An ACK of everything received so far.
+    public byte[] nextAck() {
+        long bitmap = 0;
+        for (int i = 0; i < WINDOW - 1; i++) {
+            if (held[slot(receiveNext + 1 + i)] != null) {
+                bitmap |= 1L << i;
+            }
+        }
+        byte[] packet = new byte[ACK_LENGTH];
+        packet[0] = TYPE_ACK;
+        packet[1] = (byte) (receiveNext >> 8);
+        packet[2] = (byte) receiveNext;
+        for (int i = ACK_LENGTH - 1; i >= 3; i--) {
+            packet[i] = (byte) bitmap;
+            bitmap >>>= 8;
+        }
+        ackDue = false;
+        unacknowledged = 0;
+        inFlight = -1;
+        ackInFlight = true;
+        return packet;
+    }
+}
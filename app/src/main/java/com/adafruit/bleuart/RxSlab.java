@@ -0,0 +1,39 @@
+package com.adafruit.bleuart;
+
+// Preallocated slab that incoming UART data is copied into exactly once.  Each packet is placed
+// contiguously after the previous one, wrapping back to the start when it doesn't fit, and
+// receivers are handed (slab, offset, length) views instead of freshly allocated arrays.  A view
+// stays valid until roughly another slab's worth of data has arrived, so receivers that need the
+// bytes for longer must copy them out before returning from onReceive.
+public class RxSlab {
+    private final byte[] slab;
+    private int position; // Where the next packet will be copied
+
+    public RxSlab(int capacity) {
+        this.slab = new byte[capacity];
+        this.position = 0;
+    }
+
+    // The backing array that offsets returned by put() refer to.
+    public byte[] array() {
+        return slab;
+    }
+
+    public int capacity() {
+        return slab.length;
+    }
+
+    // Copy len bytes of data starting at offset into the slab and return where they were placed.
+    public synchronized int put(byte[] data, int offset, int len) {
+        if (len > slab.length) {
+            throw new IllegalArgumentException("packet of " + len + " bytes does not fit in the slab");
+        }
+        if (position + len > slab.length) {
+            position = 0;
+        }
+        int start = position;
+        System.arraycopy(data, offset, slab, start, len);
+        position += len;
+        return start;
+    }
+}
@@ -0,0 +1,56 @@
+package com.adafruit.bleuart;
+
+// Connection setup times across every connection a UART has made.  Each phase has a histogram of
+// how long connections took to get to it from the phase before, so a regression shows up against
+// the step that caused it, and there is one of the whole time to first byte.
+public class SetupLatency {
+    private final LatencyHistogram[] phases = new LatencyHistogram[ConnectionTimeline.Phase.values().length];
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+    public SetupLatency() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    // Mark the phase on the connection's timeline now, and record how long it took if this is the
+    // first time it was reached.
+    public void mark(ConnectionTimeline timeline, ConnectionTimeline.Phase phase) {
+        if (!timeline.mark(phase, System.nanoTime())) {
+            return;
+        }
+        ConnectionTimeline.Phase previous = timeline.previous(phase);
+        if (previous != null) {
+            phases[phase.ordinal()].record(timeline.elapsed(previous, phase));
+        }
+        if (phase == ConnectionTimeline.Phase.FIRST_BYTE) {
+            ConnectionTimeline.Phase origin = timeline.first();
+            if (origin != phase) {
+                timeToFirstByte.record(timeline.elapsed(origin, phase));
+            }
+        }
+    }
+
+    // Time from the previous phase reached to this one.
+    public LatencyHistogram get(ConnectionTimeline.Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    // Time from the first phase reached to the first UART byte.
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (ConnectionTimeline.Phase phase : ConnectionTimeline.Phase.values()) {
+            LatencyHistogram histogram = phases[phase.ordinal()];
+            if (histogram.getCount() > 0) {
+                sb.append(phase).append(": ").append(histogram).append('\n');
+            }
+        }
+        sb.append("TIME_TO_FIRST_BYTE: ").append(timeToFirstByte).append('\n');
+        return sb.toString();
+    }
+}
@@ -1,17 +1,42 @@
 package com.adafruit.bleuart;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.List;
 
 public interface UartBase {
+    // How the connection trades latency against power.  LOW_LATENCY asks for the shortest
+    // connection interval (11.25-15 ms), BALANCED for 30-50 ms and LOW_POWER for 100-125 ms.
+    public enum ConnectionProfile {
+        LOW_LATENCY,
+        BALANCED,
+        LOW_POWER
+    }
+
     // Interface for a BluetoothLeUart client to be notified of UART actions.
     public interface HostCallback {
         public void onConnected(UartBase uart);
         public void onConnectFailed(UartBase uart);
         public void onDisconnected(UartBase uart);
-        public void onReceive(UartBase uart, BluetoothGattCharacteristic rx);
+        // Received bytes are data[offset, offset + length).  The array is shared and reused, so
+        // copy out anything needed after returning.
+        public void onReceive(UartBase uart, byte[] data, int offset, int length);
         public void onDeviceFound(BluetoothDevice device);
         public void onDeviceInfoAvailable();
+        // The TX buffer filled up to its high watermark; producers should hold off.
+        public void onBackpressure(UartBase uart);
+        // The TX buffer drained back down to its low watermark after onBackpressure.
+        public void onWritable(UartBase uart);
+    }
+
+    // A callback that also wants to know which peer each event is about.  Callbacks implementing
+    // it get the onPeer variants instead of onConnected, onConnectFailed, onDisconnected and
+    // onReceive, once for every peer.
+    public interface PeerCallback extends HostCallback {
+        public void onPeerConnected(UartBase uart, BluetoothDevice device);
+        public void onPeerConnectFailed(UartBase uart, BluetoothDevice device);
+        public void onPeerDisconnected(UartBase uart, BluetoothDevice device);
+        public void onPeerReceive(UartBase uart, BluetoothDevice device, byte[] data, int offset, int length);
     }
 
     public void registerCallback(UartBase.HostCallback callback);
@@ -20,6 +45,61 @@ public interface UartBase {
     public void disconnect();
     public void stop();
     public String getDeviceInfo();
+    // Peers currently connected and set up for UART traffic.
+    public List<BluetoothDevice> getConnectedDevices();
+    // When each phase of the connection to a peer was reached, or null if there is no connection
+    // to it.  The copy returned doesn't change.
+    public ConnectionTimeline getConnectionTimeline(BluetoothDevice device);
+    // How long each phase of connection setup has taken, across every connection so far.
+    public SetupLatency getSetupLatency();
+    // Throughput, queueing and acknowledgement latency of the links, for watching them in
+    // production without logging.
+    public UartMetrics getMetrics();
+    // Send to every connected peer.
     public void send(byte[] data);
     public void send(String data);
+    // Send to one connected peer only.  Its data is queued and framed on its own, so other peers
+    // see nothing of it.
+    public void send(BluetoothDevice device, byte[] data);
+    public void setFlushDeadline(long micros);
+    // Apply the profile to every connection, now and as peers connect.  Defaults to BALANCED.
+    // Connections also ask for the LE 2M PHY where both ends support it.  Only the central can
+    // ask for a connection interval; a peripheral just picks the PHY.
+    public void setConnectionProfile(ConnectionProfile profile);
+    // Switch a connection to LOW_LATENCY while a bulk transfer is queued for it, and back to the
+    // chosen profile once it has drained.  On by default.
+    public void setBulkBoostEnabled(boolean enable);
+    // Bound the TX buffer to capacity bytes, report onBackpressure/onWritable when it crosses the
+    // high/low watermarks, and apply policy to send() calls that don't fit.  BLOCK must not be
+    // used from the thread that delivers UART callbacks.  Framed sends never evict part of a
+    // queued frame, so with a frame codec DROP_OLDEST discards the new message like REJECT.
+    public void setTxLimits(int capacity, int lowWatermark, int highWatermark, OverflowPolicy policy);
+
+    // Queue as much of data as the bounded TX buffer has room for and return the number of bytes
+    // taken.  Unlike send(), this never grows the buffer.  Takes nothing while no peer is
+    // connected.
+    public int offer(byte[] data, int offset, int length);
+    // Wait until the TX buffer has room again, which includes waiting for a peer to connect.  A
+    // timeout of 0 waits indefinitely.  Returns false if the timeout passed first.
+    public boolean awaitWritable(long timeoutMillis) throws InterruptedException;
+
+    // Send each send() as one frame of the given codec, and hand onReceive and the input stream
+    // only whole messages that passed the codec's CRC.  null (the default) passes the raw byte
+    // stream through.  offer() and the output stream always queue raw bytes.
+    public void setFrameCodec(FrameCodec codec);
+    // Offer per-message compression to the peer (see FrameCompressor).  It only takes effect with
+    // a frame codec set and once the peer has agreed; until then, or with a peer that doesn't
+    // support it, messages go out uncompressed.  Compressed messages carry a one byte header, so
+    // they must be one byte shorter than the codec's maximum; send() drops longer ones, as it
+    // does any message over the maximum.
+    public void setCompressionEnabled(boolean enable);
+    // Sequence every packet and have the peer acknowledge it, resending whatever a notification
+    // or write failed to deliver (see ReliableChannel).  Costs three bytes a packet and a short
+    // ACK back every few packets.  Both ends must agree, so set it the same on both before they
+    // connect.  Off by default.
+    public void setReliableEnabled(boolean enable);
+
+    // Blocking byte streams over the UART, backed by the bounded RX and TX buffers.
+    public UartInputStream getInputStream();
+    public UartOutputStream getOutputStream();
 }
@@ -0,0 +1,830 @@
+package com.adafruit.bleuart;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Everything a UART does with its data between send() and the radio, for either role and any
+// number of peers: a bounded TX ring per peer with watermarks and an overflow policy, coalescing
+// sends into packets as large as the link allows, the flush deadline, framing and compression,
+// reliable mode, and metrics.  It knows nothing of Android; a GattTransport moves its packets, so
+// the same code runs over BluetoothGatt, BluetoothGattServer or a SimulatedRadio.
+//
+// send(), offer() and awaitWritable() may be called from any thread.  Everything else, the
+// Endpoint methods included, belongs to the transport's thread.
+public class UartEngine implements GattTransport.Endpoint {
+    // Where received data and TX buffer state go.  Called on the transport's thread, apart from
+    // onBackpressure and onWritable, which come from whichever thread crossed the watermark.
+    public interface Listener {
+        // A message (with a frame codec) or a packet of raw bytes arrived from the peer as
+        // data[offset, offset + length).  The array is shared and reused, so copy out anything
+        // needed after returning.
+        public void onReceive(String peer, byte[] data, int offset, int length);
+        public void onBackpressure();
+        public void onWritable();
+    }
+
+    public static final int DEFAULT_TX_CAPACITY = 64 * 1024; // Most bytes queued per peer by default
+
+    private static final int TX_RING_INITIAL_CAPACITY = 1024;
+    private static final int RX_SLAB_CAPACITY = 16 * 1024;
+
+    private final GattTransport transport;
+    private final Listener listener;
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+
+    // TX limits shared by every peer's ring, and the receive slab they all copy into
+    private int txCapacity = DEFAULT_TX_CAPACITY; // Most bytes queued for sending to each peer
+    private int txLowWatermark = DEFAULT_TX_CAPACITY / 4;
+    private int txHighWatermark = DEFAULT_TX_CAPACITY * 3 / 4;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private boolean backpressured; // Between onBackpressure and onWritable
+    private final Object txSpace = new Object(); // Signalled whenever a packet leaves a TX ring
+    private final RxSlab rxSlab = new RxSlab(RX_SLAB_CAPACITY);
+    private volatile long flushDeadlineMicros; // How long a partial packet may wait for more data, 0 = never
+    private volatile FrameCodec frameCodec; // Frames each send() and reassembles received messages, null = raw
+    private volatile FrameCompressor compressor; // Compresses frames once negotiated, null without a codec
+    private volatile boolean compressionEnabled; // Offer or accept compression
+    private volatile boolean reliableEnabled; // Sequence and acknowledge packets, see ReliableChannel
+    private final UartMetrics metrics = new UartMetrics();
+
+    // State for one peer.  The ring is filled from whichever thread calls send(); the rest
+    // belongs to the transport's thread.
+    private class Peer {
+        final String address;
+        final ByteRing ring;
+        volatile boolean open; // Takes part in sends to every peer
+        long packetIssuedNanos; // When the packet in flight was taken
+        int packetLength; // Size of the packet in flight, 0 if none is
+        byte[] packet; // The packet in flight outside reliable mode, put back if it fails
+        boolean packetIsStart; // The packet in flight is a resent START, not bytes from the ring
+        FrameDecoder decoder; // Reassembles messages from this peer, for decoderCodec
+        FrameCodec decoderCodec;
+        volatile boolean peerAcceptsCompression; // Peer answered or sent HELLO
+        volatile boolean txCompressing; // START sent, frames to this peer are compressed
+        boolean rxCompressed; // Peer sent START
+        boolean compressionHelloSent;
+        boolean resendStart; // Compressed frames are queued; the new connection needs START first
+        ReliableChannel reliable; // Sequencing and acks in reliable mode, null until first needed
+        boolean retransmitArmed; // retransmitTask is scheduled
+        boolean ackScheduled; // ackTask is scheduled
+
+        // Sends a partial packet once the flush deadline passes without it filling up.
+        final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                transport.requestSend(address);
+            }
+        };
+
+        // Resends what is still unacknowledged once the retransmit timeout passes.
+        final Runnable retransmitTask = new Runnable() {
+            @Override
+            public void run() {
+                onRetransmitTimeout(Peer.this);
+            }
+        };
+
+        // Acknowledges packets that arrived, once the ack delay passes without another ACK.
+        final Runnable ackTask = new Runnable() {
+            @Override
+            public void run() {
+                ackScheduled = false;
+                if (reliable != null) {
+                    reliable.onAckTimeout();
+                    transport.requestSend(address);
+                }
+            }
+        };
+
+        // Takes each payload that reliable mode puts back in order.
+        final FrameDecoder.Listener packetListener = new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                deliverPacket(Peer.this, data, offset, length);
+            }
+        };
+
+        // Handles each message this peer's frame decoder completes.
+        final FrameDecoder.Listener frameListener = new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                onMessage(Peer.this, data, offset, length);
+            }
+        };
+
+        // Delivers each message the compressor restores.
+        final FrameDecoder.Listener messageListener = new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                listener.onReceive(address, data, offset, length);
+            }
+        };
+
+        Peer(String address) {
+            this.address = address;
+            this.ring = new ByteRing(TX_RING_INITIAL_CAPACITY, txCapacity);
+        }
+    }
+
+    public UartEngine(GattTransport transport, Listener listener) {
+        this.transport = transport;
+        this.listener = listener;
+        transport.setEndpoint(this);
+    }
+
+    private Peer peer(String address) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            Peer raced = peers.putIfAbsent(address, peer);
+            if (raced != null) {
+                peer = raced;
+            }
+        }
+        return peer;
+    }
+
+    // Start receiving from a peer that has connected but can't be sent to yet.  Packets from
+    // peers the engine doesn't know are dropped.
+    public void addPeer(String address) {
+        peer(address);
+    }
+
+    // Include the peer in sends to every peer from now on.  Sends to it alone work once it is open.
+    public void openPeer(String address) {
+        peer(address).open = true;
+        // Writers waiting for a peer to send to can go ahead.
+        synchronized (txSpace) {
+            txSpace.notifyAll();
+        }
+    }
+
+    // Forget a peer along with its queued data.
+    public void closePeer(String address) {
+        Peer peer = peers.remove(address);
+        metrics.removePeer(address);
+        if (peer != null) {
+            transport.cancel(peer.flushTask);
+            transport.cancel(peer.retransmitTask);
+            transport.cancel(peer.ackTask);
+        }
+        synchronized (txSpace) {
+            txSpace.notifyAll();
+        }
+    }
+
+    // The link to the peer dropped but it is coming back.  Its queued data is kept for the next
+    // connection, along with a packet still in flight; everything the peer will have forgotten
+    // is reset.
+    public void resetPeer(String address) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            return;
+        }
+        transport.cancel(peer.flushTask);
+        transport.cancel(peer.retransmitTask);
+        transport.cancel(peer.ackTask);
+        peer.retransmitArmed = false;
+        peer.ackScheduled = false;
+        peer.packetLength = 0;
+        requeuePacket(peer);
+        if (peer.reliable != null) {
+            // Sequence numbers start over with the connection.  Whatever the peer hadn't
+            // acknowledged is gone with it.
+            int outstanding = peer.reliable.getOutstanding();
+            if (outstanding > 0) {
+                UartTrace.trace(UartTrace.WARN, UartTrace.UNACKED_DROPPED, address, outstanding);
+            }
+            peer.reliable = null;
+        }
+        // The peer starts decoding afresh, so the rest of a frame the old connection cut short
+        // would only garble the next one.
+        int partial = peer.ring.toFrameEnd();
+        if (partial > 0) {
+            peer.ring.skip(partial);
+            UartTrace.trace(UartTrace.WARN, UartTrace.PARTIAL_FRAME_DROPPED, address, partial);
+            checkWatermarks();
+        }
+        if (peer.decoder != null) {
+            peer.decoder.reset();
+        }
+        peer.rxCompressed = false;
+        peer.compressionHelloSent = false;
+        peer.resendStart = peer.txCompressing;
+    }
+
+    // Bytes waiting to be sent to the peer.
+    public int getQueuedBytes(String address) {
+        Peer peer = peers.get(address);
+        return (peer == null) ? 0 : peer.ring.size();
+    }
+
+    public UartMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Hold back a partial packet for up to the given number of microseconds so that following
+    // sends can be packed into the same packet.  0 (the default) sends whatever is pending as soon
+    // as the link is free.
+    public void setFlushDeadline(long micros) {
+        flushDeadlineMicros = Math.max(0, micros);
+    }
+
+    // True if a partial packet of pending bytes should wait for more data.  Schedules the flush
+    // for when the deadline passes.
+    private boolean holdBack(Peer peer, int pending, int maxLength) {
+        long deadline = flushDeadlineMicros;
+        if (pending >= maxLength || deadline == 0) {
+            return false;
+        }
+        long waitedMicros = (System.nanoTime() - peer.ring.getOldestWriteNanos()) / 1000;
+        if (waitedMicros >= deadline) {
+            return false;
+        }
+        transport.schedule(peer.flushTask, (deadline - waitedMicros + 999) / 1000);
+        return true;
+    }
+
+    // The peer's reliable mode state, or null with reliable mode off.  Transport's thread only.
+    private ReliableChannel reliable(Peer peer) {
+        if (!reliableEnabled) {
+            return null;
+        }
+        if (peer.reliable == null) {
+            peer.reliable = new ReliableChannel();
+        }
+        return peer.reliable;
+    }
+
+    @Override
+    public boolean hasPacket(String address, int maxLength) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            return false;
+        }
+        ReliableChannel reliable = reliable(peer);
+        if (reliable != null) {
+            if (reliable.isAckDue() || reliable.hasResend()) {
+                return true;
+            }
+            if (!reliable.canSend()) {
+                return false;
+            }
+            maxLength -= ReliableChannel.HEADER_LENGTH;
+        }
+        int pending = peer.ring.size();
+        return pending > 0 && !holdBack(peer, pending, maxLength);
+    }
+
+    // The peer's next packet, at most maxLength bytes.  In reliable mode an ACK owed to the peer
+    // goes first, then anything to resend, then new data if the window has room.
+    @Override
+    public byte[] nextPacket(String address, int maxLength) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            return null;
+        }
+        ReliableChannel reliable = reliable(peer);
+        byte[] packet = null;
+        if (reliable == null) {
+            packet = takePacket(peer, maxLength, 0);
+        } else if (reliable.isAckDue()) {
+            transport.cancel(peer.ackTask);
+            peer.ackScheduled = false;
+            packet = reliable.nextAck();
+        } else if (reliable.hasResend()) {
+            packet = reliable.nextResend(System.nanoTime());
+            metrics.packetRetransmitted(address);
+            UartTrace.trace(UartTrace.DEBUG, UartTrace.RETRANSMIT, address, packet.length);
+        } else if (reliable.canSend()) {
+            packet = takePacket(peer, maxLength - ReliableChannel.HEADER_LENGTH,
+                    ReliableChannel.HEADER_LENGTH);
+            if (packet != null) {
+                reliable.send(packet, System.nanoTime());
+            }
+        }
+        if (packet != null) {
+            peer.packetIssuedNanos = System.nanoTime();
+            peer.packetLength = packet.length;
+            peer.packet = (reliable == null) ? packet : null;
+        }
+        return packet;
+    }
+
+    // Pack as much pending data as maxLength allows into a new packet, after reserve bytes left
+    // free for a header.  null if there is nothing to send yet.
+    private byte[] takePacket(Peer peer, int maxLength, int reserve) {
+        int pending = peer.ring.size();
+        if (pending == 0 || holdBack(peer, pending, maxLength)) {
+            return null;
+        }
+
+        FrameCodec codec = frameCodec;
+        if (peer.resendStart && codec != null) {
+            // The peer forgot our compression with the old connection.  Tell it again before
+            // any of the compressed frames left in the ring.
+            peer.resendStart = false;
+            peer.packetIsStart = true;
+            byte[] start = FrameCompressor.controlMessage(FrameCompressor.CONTROL_START);
+            byte[] frame = encodeFrame(codec, start, start.length);
+            byte[] packet = new byte[reserve + frame.length];
+            System.arraycopy(frame, 0, packet, reserve, frame.length);
+            return packet;
+        }
+
+        byte[] packet = new byte[reserve + Math.min(maxLength, pending)];
+        peer.packetIsStart = false;
+        metrics.frameDequeued(peer.ring.getOldestWriteNanos());
+        peer.ring.read(packet, reserve, packet.length - reserve);
+        synchronized (txSpace) {
+            txSpace.notifyAll();
+        }
+        checkWatermarks();
+        return packet;
+    }
+
+    @Override
+    public void onPacketSent(String address, boolean success) {
+        Peer peer = peers.get(address);
+        if (peer == null || peer.packetLength == 0) {
+            return;
+        }
+        metrics.frameSent(address, peer.packetLength, peer.packetIssuedNanos, success);
+        peer.packetLength = 0;
+        if (!success) {
+            requeuePacket(peer);
+        }
+        peer.packet = null;
+        ReliableChannel reliable = peer.reliable;
+        if (reliable != null) {
+            reliable.onSent(success);
+            // A packet that failed waits for the timer rather than being retried in a tight loop.
+            if (!peer.retransmitArmed && reliable.getOutstanding() > 0) {
+                armRetransmit(peer, reliable);
+            }
+        }
+    }
+
+    // Put the packet in flight back at the head of the ring, so it goes again next instead of
+    // leaving a hole in the byte stream (and a cut frame for the peer's decoder).  A resent START
+    // is simply sent again.  Reliable mode keeps its own copy.
+    private void requeuePacket(Peer peer) {
+        byte[] packet = peer.packet;
+        if (packet == null) {
+            return;
+        }
+        peer.packet = null;
+        if (peer.packetIsStart) {
+            peer.resendStart = true;
+            return;
+        }
+        peer.ring.unread(packet, 0, packet.length);
+        checkWatermarks();
+    }
+
+    private void armRetransmit(Peer peer, ReliableChannel reliable) {
+        peer.retransmitArmed = true;
+        transport.schedule(peer.retransmitTask, reliable.getRetransmitTimeoutMillis());
+    }
+
+    private void onRetransmitTimeout(Peer peer) {
+        peer.retransmitArmed = false;
+        ReliableChannel reliable = peer.reliable;
+        if (reliable != null && reliable.getOutstanding() > 0) {
+            reliable.onTimeout();
+            transport.requestSend(peer.address);
+        }
+    }
+
+    @Override
+    public void onPacketReceived(String address, byte[] data, int offset, int length) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            // Late from a peer already closed; bringing it back would leave it there for good.
+            return;
+        }
+        metrics.frameReceived(address, length);
+        UartTrace.trace(UartTrace.DEBUG, UartTrace.RECEIVE, address, length);
+        ReliableChannel reliable = reliable(peer);
+        if (reliable == null) {
+            deliverPacket(peer, data, offset, length);
+            return;
+        }
+
+        switch (ReliableChannel.packetType(data, offset, length)) {
+            case ReliableChannel.TYPE_DATA:
+                reliable.receive(data, offset, length, peer.packetListener);
+                if (reliable.isAckDue()) {
+                    transport.requestSend(address);
+                } else if (reliable.hasUnacknowledged() && !peer.ackScheduled) {
+                    peer.ackScheduled = true;
+                    transport.schedule(peer.ackTask, ReliableChannel.ACK_DELAY_MILLIS);
+                }
+                break;
+            case ReliableChannel.TYPE_ACK:
+                if (reliable.onAck(data, offset, length, System.nanoTime())) {
+                    // Progress: time what is still outstanding afresh, and use the room.
+                    if (reliable.getOutstanding() > 0) {
+                        armRetransmit(peer, reliable);
+                    } else {
+                        transport.cancel(peer.retransmitTask);
+                        peer.retransmitArmed = false;
+                    }
+                    transport.requestSend(address);
+                } else if (reliable.hasResend()) {
+                    transport.requestSend(address);
+                }
+                break;
+            default:
+                UartTrace.trace(UartTrace.WARN, UartTrace.MALFORMED_PACKET, address, length);
+                break;
+        }
+    }
+
+    // Hand a packet of the peer's byte stream to its frame decoder, or straight to the listener
+    // without a frame codec.
+    private void deliverPacket(Peer peer, byte[] data, int offset, int length) {
+        FrameCodec codec = frameCodec;
+        if (codec != null) {
+            // Each peer's messages are reassembled in its own decoder and delivered from there.
+            if (peer.decoderCodec != codec) {
+                peer.decoder = codec.newDecoder();
+                peer.decoderCodec = codec;
+            }
+            peer.decoder.decode(data, offset, length, peer.frameListener);
+            return;
+        }
+
+        // Copy the packet once into the receive slab; every callback reads the same view.
+        int slabOffset = rxSlab.put(data, offset, length);
+        listener.onReceive(peer.address, rxSlab.array(), slabOffset, length);
+    }
+
+    // Report crossings of the TX watermarks, going by the peer with the most data queued.
+    private void checkWatermarks() {
+        int queued = 0;
+        long total = 0;
+        for (Peer peer : peers.values()) {
+            int size = peer.ring.size();
+            queued = Math.max(queued, size);
+            total += size;
+        }
+        metrics.setQueuedBytes(total);
+
+        boolean notifyBackpressure = false;
+        boolean notifyWritable = false;
+        synchronized (txSpace) {
+            if (!backpressured && queued >= txHighWatermark) {
+                backpressured = notifyBackpressure = true;
+            } else if (backpressured && queued <= txLowWatermark) {
+                backpressured = false;
+                notifyWritable = true;
+            }
+        }
+        if (notifyBackpressure) {
+            listener.onBackpressure();
+        } else if (notifyWritable) {
+            listener.onWritable();
+        }
+    }
+
+    // A peer that a send to only, or to every open peer if only is null, goes to.
+    private static boolean isTarget(Peer peer, Peer only) {
+        return (only != null) ? peer == only : peer.open;
+    }
+
+    // Send data to one open peer, or to every open peer if address is null.  Each peer's data is
+    // queued in its own TX ring and leaves in packets as large as its link allows, so small sends
+    // are coalesced.  Data that doesn't fit in the rings is handled according to the overflow
+    // policy.
+    public void send(String address, byte[] data) {
+        if (data == null || data.length == 0) {
+            // Do nothing if there is no connection or message to send.
+            return;
+        }
+        Peer only = null;
+        if (address != null) {
+            only = peers.get(address);
+            if (only == null || !only.open) {
+                UartTrace.trace(UartTrace.WARN, UartTrace.NOT_CONNECTED, address, data.length);
+                return;
+            }
+        }
+
+        FrameCodec codec = frameCodec;
+        if (codec != null) {
+            sendFrames(codec, only, data);
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                // Hand over what fits and wait for the link to drain the rest.
+                int offset = 0;
+                while (offset < data.length) {
+                    offset += offerTo(only, data, offset, data.length - offset);
+                    if (offset < data.length) {
+                        try {
+                            if (!awaitRoom(only, 1, 0, true)) {
+                                UartTrace.trace(UartTrace.WARN, UartTrace.NOT_CONNECTED, address, data.length - offset);
+                                return;
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            UartTrace.trace(UartTrace.WARN, UartTrace.SEND_INTERRUPTED, address, data.length - offset);
+                            return;
+                        }
+                    }
+                }
+                return;
+            case REJECT:
+                if (txRemaining(only) < data.length) {
+                    UartTrace.trace(UartTrace.WARN, UartTrace.TX_REJECTED, address, data.length);
+                    return;
+                }
+                break;
+            case DROP_OLDEST:
+                break;
+        }
+
+        for (Peer peer : peers.values()) {
+            if (isTarget(peer, only)) {
+                int dropped = peer.ring.writeEvicting(data, 0, data.length);
+                if (dropped > 0) {
+                    UartTrace.trace(UartTrace.WARN, UartTrace.TX_DROPPED, peer.address, dropped);
+                }
+            }
+        }
+        checkWatermarks();
+        transport.requestSend(address);
+    }
+
+    // Send one message as a frame to the target peers, compressed for the ones that agreed to
+    // it.  Each peer's frame goes into its ring in one piece, so frames from different send()
+    // calls never interleave.
+    private void sendFrames(FrameCodec codec, Peer only, byte[] message) {
+        FrameCompressor compressor = this.compressor;
+        String address = (only == null) ? null : only.address;
+
+        // A plain message that looks like compression control goes out escaped.
+        boolean escape = FrameCompressor.needsEscape(message, 0, message.length);
+
+        // The codec can't frame more than its maximum, and a compressed frame carries a header
+        // byte on top.  Check before any peer's state changes, so a broadcast is all or nothing.
+        int payload = message.length + (escape ? FrameCompressor.ESCAPE_LENGTH : 0);
+        if (compressor != null && compressesFor(only)) {
+            payload = Math.max(payload, compressor.maxEncodedLength(message.length));
+        }
+        if (payload > codec.getMaxPayloadLength()) {
+            UartTrace.trace(UartTrace.WARN, UartTrace.MESSAGE_TOO_LARGE, address, message.length);
+            return;
+        }
+        int needed = codec.maxEncodedLength(payload)
+                + codec.maxEncodedLength(FrameCompressor.CONTROL_LENGTH);
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                if (needed > txCapacity) {
+                    // It would never fit; waiting for room would block for good.
+                    UartTrace.trace(UartTrace.WARN, UartTrace.MESSAGE_TOO_LARGE, address, message.length);
+                    return;
+                }
+                // Wait until every target has room for the whole frame.
+                try {
+                    if (!awaitRoom(only, needed, 0, true)) {
+                        UartTrace.trace(UartTrace.WARN, UartTrace.NOT_CONNECTED, address, message.length);
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    UartTrace.trace(UartTrace.WARN, UartTrace.SEND_INTERRUPTED, address, message.length);
+                    return;
+                }
+                break;
+            case REJECT:
+            case DROP_OLDEST:
+                // Evicting the oldest bytes would cut a queued frame in two, so under framing
+                // DROP_OLDEST discards the new frame instead, as REJECT does.
+                if (txRemaining(only) < needed) {
+                    UartTrace.trace(UartTrace.WARN, UartTrace.TX_REJECTED, address, message.length);
+                    return;
+                }
+                break;
+        }
+
+        byte[] plain = null;
+        byte[] packed = null;
+        for (Peer peer : peers.values()) {
+            if (!isTarget(peer, only)) {
+                continue;
+            }
+            byte[] frame;
+            if (compressor != null && peer.peerAcceptsCompression) {
+                if (!peer.txCompressing) {
+                    // Frames to this peer carry a compression header from here on, tell it first.
+                    peer.txCompressing = true;
+                    queueControl(codec, peer, FrameCompressor.CONTROL_START);
+                }
+                if (packed == null) {
+                    byte[] compressed = new byte[compressor.maxEncodedLength(message.length)];
+                    int length;
+                    synchronized (compressor) {
+                        length = compressor.encode(message, 0, message.length, compressed, 0);
+                    }
+                    packed = encodeFrame(codec, compressed, length);
+                }
+                frame = packed;
+            } else {
+                if (plain == null) {
+                    byte[] data = escape ? FrameCompressor.escape(message, 0, message.length) : message;
+                    plain = encodeFrame(codec, data, data.length);
+                }
+                frame = plain;
+            }
+
+            // Room was checked above; a concurrent send() can still take it first, in which case
+            // the ring goes over its limit for a moment rather than losing part of a frame.
+            peer.ring.writeFrame(frame, 0, frame.length);
+        }
+        checkWatermarks();
+        transport.requestSend(address);
+    }
+
+    // True if any target's frames are, or are about to be, compressed.
+    private boolean compressesFor(Peer only) {
+        for (Peer peer : peers.values()) {
+            if (isTarget(peer, only) && peer.peerAcceptsCompression) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Encode data[0, length) as one frame, in an array of exactly the frame's size.
+    private static byte[] encodeFrame(FrameCodec codec, byte[] data, int length) {
+        byte[] frame = new byte[codec.maxEncodedLength(length)];
+        int size = codec.encode(data, 0, length, frame, 0);
+        return (size == frame.length) ? frame : Arrays.copyOf(frame, size);
+    }
+
+    // Room left in the fullest target's TX ring, since every target gets the same bytes.  None
+    // while there is no target, so nothing is taken for a link that isn't there.
+    private int txRemaining(Peer only) {
+        int remaining = txCapacity;
+        boolean targeted = false;
+        for (Peer peer : peers.values()) {
+            if (isTarget(peer, only)) {
+                remaining = Math.min(remaining, peer.ring.remaining());
+                targeted = true;
+            }
+        }
+        return targeted ? remaining : 0;
+    }
+
+    private boolean hasTarget(Peer only) {
+        for (Peer peer : peers.values()) {
+            if (isTarget(peer, only)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Queue as much of data as every open peer's ring has room for and return the number of
+    // bytes taken.
+    public int offer(byte[] data, int offset, int length) {
+        return offerTo(null, data, offset, length);
+    }
+
+    private int offerTo(Peer only, byte[] data, int offset, int length) {
+        int taken = Math.min(length, txRemaining(only));
+        if (taken > 0) {
+            for (Peer peer : peers.values()) {
+                if (isTarget(peer, only)) {
+                    // Another thread can take the room between the check and here; going over
+                    // the limit for a moment beats evicting bytes already accepted.
+                    peer.ring.write(data, offset, taken);
+                }
+            }
+            checkWatermarks();
+            transport.requestSend((only == null) ? null : only.address);
+        }
+        return taken;
+    }
+
+    public void setTxLimits(int capacity, int lowWatermark, int highWatermark, OverflowPolicy policy) {
+        if (capacity <= 0 || lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > capacity) {
+            throw new IllegalArgumentException("need 0 <= lowWatermark <= highWatermark <= capacity");
+        }
+        synchronized (txSpace) {
+            txCapacity = capacity;
+            txLowWatermark = lowWatermark;
+            txHighWatermark = highWatermark;
+            overflowPolicy = policy;
+            for (Peer peer : peers.values()) {
+                peer.ring.setLimit(capacity);
+            }
+            txSpace.notifyAll();
+        }
+    }
+
+    public boolean awaitWritable(long timeoutMillis) throws InterruptedException {
+        return awaitRoom(null, 1, timeoutMillis, false);
+    }
+
+    // Wait until every target has room for needed bytes.  A timeout of 0 waits indefinitely.
+    // Without a target there is never room; connected says to give up then rather than wait for
+    // one to connect.
+    private boolean awaitRoom(Peer only, int needed, long timeoutMillis, boolean connected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (txSpace) {
+            while (txRemaining(only) < needed) {
+                if (connected && !hasTarget(only)) {
+                    return false;
+                }
+                long wait = 0;
+                if (timeoutMillis > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                }
+                txSpace.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    public void setFrameCodec(FrameCodec codec) {
+        compressor = (codec == null) ? null : new FrameCompressor(codec.getMaxPayloadLength());
+        frameCodec = codec;
+    }
+
+    public void setCompressionEnabled(boolean enable) {
+        compressionEnabled = enable;
+    }
+
+    // Sequence, acknowledge and resend every packet (see ReliableChannel).  Both ends have to
+    // agree, so set it the same on both before they connect.
+    public void setReliableEnabled(boolean enable) {
+        reliableEnabled = enable;
+    }
+
+    // True if send() is compressing messages for the peer.
+    public boolean isCompressing(String address) {
+        Peer peer = peers.get(address);
+        return peer != null && peer.txCompressing;
+    }
+
+    // Offer compression to the peer.  Nothing changes until it answers.  The central makes the
+    // offer once connected; a peripheral only answers.
+    public void offerCompression(String address) {
+        FrameCodec codec = frameCodec;
+        Peer peer = peers.get(address);
+        if (compressionEnabled && codec != null && peer != null && !peer.compressionHelloSent) {
+            peer.compressionHelloSent = true;
+            queueControl(codec, peer, FrameCompressor.CONTROL_HELLO);
+            transport.requestSend(address);
+        }
+    }
+
+    // Queue a compression control message as a frame of its own.  It is only a few bytes, so it
+    // goes in regardless of the overflow policy, and over the limit rather than evicting part of
+    // another frame.
+    private void queueControl(FrameCodec codec, Peer peer, int type) {
+        byte[] message = FrameCompressor.controlMessage(type);
+        byte[] frame = encodeFrame(codec, message, message.length);
+        peer.ring.writeFrame(frame, 0, frame.length);
+    }
+
+    // Sort a received message into compression control, compressed data or plain data.
+    private void onMessage(Peer peer, byte[] data, int offset, int length) {
+        FrameCompressor compressor = this.compressor;
+        if (peer.rxCompressed && compressor != null) {
+            if (!compressor.decode(data, offset, length, peer.messageListener)) {
+                UartTrace.trace(UartTrace.WARN, UartTrace.DECOMPRESS_FAILED, peer.address, length);
+            }
+            return;
+        }
+
+        switch (FrameCompressor.controlType(data, offset, length)) {
+            case FrameCompressor.CONTROL_HELLO:
+                if (compressionEnabled && frameCodec != null && compressor != null) {
+                    // Answer with our own HELLO, unless this is the answer to ours.
+                    offerCompression(peer.address);
+                    peer.peerAcceptsCompression =
+                            (FrameCompressor.controlCapabilities(data, offset) & FrameCompressor.CAP_DEFLATE) != 0;
+                }
+                return;
+            case FrameCompressor.CONTROL_START:
+                peer.rxCompressed = true;
+                return;
+            case FrameCompressor.CONTROL_ESCAPE:
+                listener.onReceive(peer.address, data, offset + FrameCompressor.ESCAPE_LENGTH,
+                        length - FrameCompressor.ESCAPE_LENGTH);
+                return;
+        }
+        listener.onReceive(peer.address, data, offset, length);
+    }
+}
@@ -0,0 +1,72 @@
+package com.adafruit.bleuart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+// Blocking InputStream over the bytes a UART receives.  Received packets are appended to a bounded
+// buffer and read() waits until data arrives.  BLE gives us no way to slow the peer down from
+// here, so bytes that arrive while the buffer is full are dropped and counted instead of letting
+// the buffer grow.  Wrap with java.nio.channels.Channels.newChannel() for a ReadableByteChannel.
+public class UartInputStream extends InputStream {
+    private final ByteRing buffer;
+    private final byte[] single = new byte[1];
+    private long droppedBytes;
+    private boolean closed;
+
+    public UartInputStream(int capacity) {
+        this.buffer = new ByteRing(capacity, capacity);
+        this.droppedBytes = 0;
+        this.closed = false;
+    }
+
+    // Called by the UART for every packet received.
+    public synchronized void receive(byte[] data, int offset, int len) {
+        if (closed) {
+            return;
+        }
+        int taken = buffer.offer(data, offset, len);
+        droppedBytes += len - taken;
+        notifyAll();
+    }
+
+    // Return the number of received bytes discarded because the buffer was full.
+    public synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (buffer.isEmpty()) {
+            if (closed) {
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return buffer.read(b, off, len);
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffer.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,226 @@
+package com.adafruit.bleuart;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Running totals of how a UART's links perform, cheap enough to leave on in production.  Every
+// counter is an AtomicLong (LongAdder would spread contention better but needs API 24) and every
+// latency a LatencyHistogram, so recording never takes a lock.  Read them live through the
+// getters, or take a snapshot of them all as JSON with toJson().
+public class UartMetrics {
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong maxQueuedBytes = new AtomicLong();
+    private final LatencyHistogram queueWait = new LatencyHistogram(); // Oldest byte's wait in the TX ring per frame
+    private final LatencyHistogram ackLatency = new LatencyHistogram(); // Write or notify to its callback
+    private final ConcurrentHashMap<String, PeerMetrics> peers = new ConcurrentHashMap<String, PeerMetrics>();
+
+    // Totals for one connected peer.
+    public static class PeerMetrics {
+        private final long sinceNanos = System.nanoTime();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong framesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong framesReceived = new AtomicLong();
+        private final AtomicLong failedWrites = new AtomicLong();
+        private final AtomicLong retransmits = new AtomicLong();
+
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        public long getFramesSent() {
+            return framesSent.get();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        public long getFramesReceived() {
+            return framesReceived.get();
+        }
+
+        public long getFailedWrites() {
+            return failedWrites.get();
+        }
+
+        public long getRetransmits() {
+            return retransmits.get();
+        }
+
+        // Frames sent per second since the peer connected.
+        public double getFrameRate() {
+            double seconds = (System.nanoTime() - sinceNanos) / 1e9;
+            return (seconds <= 0) ? 0 : framesSent.get() / seconds;
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"bytesSent\":").append(getBytesSent())
+                    .append(",\"framesSent\":").append(getFramesSent())
+                    .append(",\"bytesReceived\":").append(getBytesReceived())
+                    .append(",\"framesReceived\":").append(getFramesReceived())
+                    .append(",\"failedWrites\":").append(getFailedWrites())
+                    .append(",\"retransmits\":").append(getRetransmits())
+                    .append(",\"framesPerSecond\":").append(String.format(Locale.US, "%.1f", getFrameRate()))
+                    .append('}');
+        }
+    }
+
+    private PeerMetrics peer(String address) {
+        PeerMetrics peer = peers.get(address);
+        if (peer == null) {
+            peer = new PeerMetrics();
+            PeerMetrics raced = peers.putIfAbsent(address, peer);
+            if (raced != null) {
+                peer = raced;
+            }
+        }
+        return peer;
+    }
+
+    // A frame left a TX ring; its oldest byte was written at queuedNanos.
+    public void frameDequeued(long queuedNanos) {
+        if (queuedNanos != 0) {
+            queueWait.record(System.nanoTime() - queuedNanos);
+        }
+    }
+
+    // The write or notification of a frame issued at issuedNanos completed.
+    public void frameSent(String address, int length, long issuedNanos, boolean success) {
+        ackLatency.record(System.nanoTime() - issuedNanos);
+        PeerMetrics peer = peer(address);
+        if (success) {
+            bytesSent.addAndGet(length);
+            framesSent.incrementAndGet();
+            peer.bytesSent.addAndGet(length);
+            peer.framesSent.incrementAndGet();
+        } else {
+            failedWrites.incrementAndGet();
+            peer.failedWrites.incrementAndGet();
+        }
+    }
+
+    // Reliable mode sent a packet to the peer again, after a loss or a timeout.
+    public void packetRetransmitted(String address) {
+        retransmits.incrementAndGet();
+        peer(address).retransmits.incrementAndGet();
+    }
+
+    // A packet of UART data arrived.
+    public void frameReceived(String address, int length) {
+        bytesReceived.addAndGet(length);
+        framesReceived.incrementAndGet();
+        PeerMetrics peer = peer(address);
+        peer.bytesReceived.addAndGet(length);
+        peer.framesReceived.incrementAndGet();
+    }
+
+    // Bytes currently waiting in the TX rings.
+    public void setQueuedBytes(long queued) {
+        queuedBytes.set(queued);
+        long max;
+        while (queued > (max = maxQueuedBytes.get()) && !maxQueuedBytes.compareAndSet(max, queued)) {
+            // Lost a race with another update, look again.
+        }
+    }
+
+    // The peer disconnected; its totals stay in the UART-wide ones.
+    public void removePeer(String address) {
+        peers.remove(address);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes.get();
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    // Totals for a connected peer, or null.
+    public PeerMetrics getPeer(String address) {
+        return peers.get(address);
+    }
+
+    public Map<String, PeerMetrics> getPeers() {
+        return Collections.unmodifiableMap(peers);
+    }
+
+    // Every metric as JSON.  Values are read one at a time while recording goes on, so totals
+    // may disagree by whatever happened in between.  Latencies are in nanoseconds.
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"uptimeMs\":").append((System.nanoTime() - startNanos) / 1000000)
+                .append(",\"bytesSent\":").append(getBytesSent())
+                .append(",\"framesSent\":").append(getFramesSent())
+                .append(",\"bytesReceived\":").append(getBytesReceived())
+                .append(",\"framesReceived\":").append(getFramesReceived())
+                .append(",\"failedWrites\":").append(getFailedWrites())
+                .append(",\"retransmits\":").append(getRetransmits())
+                .append(",\"queuedBytes\":").append(getQueuedBytes())
+                .append(",\"maxQueuedBytes\":").append(getMaxQueuedBytes())
+                .append(",\"queueWait\":");
+        queueWait.appendJson(sb);
+        sb.append(",\"ackLatency\":");
+        ackLatency.appendJson(sb);
+        sb.append(",\"peers\":{");
+        boolean first = true;
+        for (Map.Entry<String, PeerMetrics> entry : peers.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\":");
+            entry.getValue().appendJson(sb);
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
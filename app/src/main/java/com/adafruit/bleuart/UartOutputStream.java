@@ -0,0 +1,78 @@
+package com.adafruit.bleuart;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+// OutputStream that queues bytes on a UART's bounded TX buffer.  When the buffer is full, write()
+// either waits for the link to drain it or fails straight away, depending on the write timeout.
+// Wrap with java.nio.channels.Channels.newChannel() for a WritableByteChannel.
+public class UartOutputStream extends OutputStream {
+    // Write timeouts: wait as long as it takes, or give up as soon as the buffer is full.
+    public static final long BLOCK = -1;
+    public static final long FAIL_FAST = 0;
+
+    private final UartBase uart;
+    private final byte[] single = new byte[1];
+    private volatile long writeTimeoutMillis;
+    private volatile boolean closed;
+
+    public UartOutputStream(UartBase uart) {
+        this.uart = uart;
+        this.writeTimeoutMillis = BLOCK;
+        this.closed = false;
+    }
+
+    // Set how long write() waits for room in the TX buffer: BLOCK, FAIL_FAST or a number of
+    // milliseconds.  A write that runs out of time throws an IOException; bytes queued before
+    // that point will still be sent.
+    public void setWriteTimeout(long millis) {
+        writeTimeoutMillis = millis;
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeoutMillis;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        long timeout = writeTimeoutMillis;
+        long deadline = System.currentTimeMillis() + timeout;
+        while (len > 0) {
+            int taken = uart.offer(b, off, len);
+            off += taken;
+            len -= taken;
+            if (len == 0) {
+                break;
+            }
+
+            long wait = 0;
+            if (timeout != BLOCK) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("TX buffer full");
+                }
+            }
+            try {
+                uart.awaitWritable(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
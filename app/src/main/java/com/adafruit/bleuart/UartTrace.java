@@ -0,0 +1,201 @@
+package com.adafruit.bleuart;
+
+import java.util.Locale;
+
+// Per-packet tracing for the hot path, where android.util.Log would allocate and format a string
+// for every frame.  Each event is a fixed message id and a few numbers, stored as longs in a ring
+// of the most recent events; nothing is turned into text until dump() is called.  Below the
+// current level an event costs one volatile read.  The default, WARN, only records dropped data
+// and failures; OFF records nothing at all.
+//
+//   UartTrace.setLevel(UartTrace.DEBUG);
+//   ... run the link ...
+//   Log.i("BlueNet", UartTrace.dump());
+public final class UartTrace {
+    // Levels, least to most verbose.
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+    // Dropped data and failures are kept without anyone asking, as they are rare and they are
+    // what a dump is usually wanted for.  Per-packet events need DEBUG.
+    public static final int DEFAULT_LEVEL = WARN;
+
+    private static final String[] LEVEL_NAMES = {"OFF", "E", "W", "I", "D"};
+
+    // Events.  The message is filled in from the event's peer address and two arguments at dump
+    // time: %1$s is the address (* for every peer), %2$d and %3$d the arguments.
+    public static final int WRITE = 0;
+    public static final int WRITE_DONE = 1;
+    public static final int NOTIFY = 2;
+    public static final int NOTIFY_DONE = 3;
+    public static final int NOTIFY_REJECTED = 4;
+    public static final int NOTIFY_DISCONNECTED = 5;
+    public static final int WRITE_REQUEST = 6;
+    public static final int RECEIVE = 7;
+    public static final int NOT_CONNECTED = 8;
+    public static final int TX_REJECTED = 9;
+    public static final int TX_DROPPED = 10;
+    public static final int SEND_INTERRUPTED = 11;
+    public static final int MESSAGE_TOO_LARGE = 12;
+    public static final int DECOMPRESS_FAILED = 13;
+    public static final int RETRANSMIT = 14;
+    public static final int UNACKED_DROPPED = 15;
+    public static final int MALFORMED_PACKET = 16;
+    public static final int PARTIAL_FRAME_DROPPED = 17;
+
+    private static final String[] MESSAGES = {
+            "%1$s writing %2$d bytes",
+            "%1$s write of %2$d bytes done, status %3$d",
+            "%1$s notifying %2$d bytes",
+            "%1$s notification done, status %2$d",
+            "%1$s notification unsuccessful",
+            "%1$s disconnected unexpectedly during a notification",
+            "%1$s write request of %2$d bytes at offset %3$d",
+            "%1$s received %2$d bytes",
+            "%1$s not connected, dropped send of %2$d bytes",
+            "%1$s TX buffer full, rejected %2$d bytes",
+            "%1$s TX buffer full, dropped %2$d oldest bytes",
+            "%1$s send interrupted, dropped %2$d bytes",
+            "%1$s message of %2$d bytes is larger than the TX buffer",
+            "%1$s dropped a frame of %2$d bytes that didn't decompress",
+            "%1$s resending a packet of %2$d bytes",
+            "%1$s link reset, dropped %2$d unacknowledged packets",
+            "%1$s dropped a malformed packet of %2$d bytes",
+            "%1$s link reset, dropped the last %2$d bytes of a frame it cut short",
+    };
+
+    // Each event takes four longs: time, level and event, peer address, and the two arguments.
+    private static final int SLOT = 4;
+    private static final int CAPACITY = 1024; // Events kept, a power of two
+
+    private static volatile int level = DEFAULT_LEVEL;
+    private static final long[] events = new long[CAPACITY * SLOT];
+    private static long recorded; // Events ever recorded, guarded by events
+
+    private UartTrace() {
+    }
+
+    // Record events at newLevel and below from now on.  DEFAULT_LEVEL until set; OFF stops
+    // recording altogether.
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    // Guard anything that is costly to compute only for an argument.
+    public static boolean isEnabled(int eventLevel) {
+        return eventLevel <= level;
+    }
+
+    // Record an event about the peer with the given Bluetooth address.  Arguments are truncated
+    // to 32 bits.
+    public static void trace(int eventLevel, int event, String address, long arg1, long arg2) {
+        if (eventLevel > level) {
+            return;
+        }
+        long nanos = System.nanoTime();
+        long peer = packAddress(address);
+        long args = (arg1 << 32) | (arg2 & 0xFFFFFFFFL);
+        synchronized (events) {
+            int slot = (int) (recorded & (CAPACITY - 1)) * SLOT;
+            events[slot] = nanos;
+            events[slot + 1] = ((long) eventLevel << 32) | event;
+            events[slot + 2] = peer;
+            events[slot + 3] = args;
+            recorded++;
+        }
+    }
+
+    public static void trace(int eventLevel, int event, String address, long arg1) {
+        trace(eventLevel, event, address, arg1, 0);
+    }
+
+    public static void trace(int eventLevel, int event, String address) {
+        trace(eventLevel, event, address, 0, 0);
+    }
+
+    // "AA:BB:CC:DD:EE:FF" as a 48-bit number, without allocating.  null, for every peer, packs as
+    // -2 and anything else as -1.
+    static long packAddress(String address) {
+        if (address == null) {
+            return -2;
+        }
+        if (address.length() != 17) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    private static String unpackAddress(long packed) {
+        if (packed == -2) {
+            return "*";
+        }
+        if (packed < 0) {
+            return "??:??:??:??:??:??";
+        }
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            sb.append(String.format(Locale.US, "%02X", (packed >>> shift) & 0xFF));
+            if (shift > 0) {
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Forget every recorded event.
+    public static void clear() {
+        synchronized (events) {
+            recorded = 0;
+        }
+    }
+
+    // The events still in the ring, oldest first, one per line with its time in microseconds
+    // relative to the newest.
+    public static String dump() {
+        long[] copy;
+        long count;
+        synchronized (events) {
+            copy = events.clone();
+            count = recorded;
+        }
+        int kept = (int) Math.min(count, CAPACITY);
+        if (kept == 0) {
+            return "";
+        }
+        long newest = copy[(int) ((count - 1) & (CAPACITY - 1)) * SLOT];
+        StringBuilder sb = new StringBuilder(kept * 64);
+        for (long i = count - kept; i < count; i++) {
+            int slot = (int) (i & (CAPACITY - 1)) * SLOT;
+            int eventLevel = (int) (copy[slot + 1] >>> 32);
+            int event = (int) copy[slot + 1];
+            long args = copy[slot + 3];
+            sb.append(String.format(Locale.US, "%+10d us %s ",
+                    (copy[slot] - newest) / 1000, LEVEL_NAMES[eventLevel]));
+            sb.append(String.format(Locale.US, MESSAGES[event],
+                    unpackAddress(copy[slot + 2]), (int) (args >> 32), (int) args));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
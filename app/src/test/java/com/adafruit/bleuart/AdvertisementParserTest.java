@@ -0,0 +1,172 @@
+package com.adafruit.bleuart;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementParserTest {
+    private static final UUID UART = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+    private static final byte[] UART_BYTES = AdvertisementParser.toAdvertisedBytes(UART);
+    private static final int TYPE_FLAGS = 0x01;
+    private static final int TYPE_NAME = 0x09;
+
+    private static UUID shortUuid(long value) {
+        return UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", value));
+    }
+
+    private static void structure(ByteArrayOutputStream out, int type, byte[] data) {
+        out.write(data.length + 1);
+        out.write(type);
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] littleEndian(long value, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (value >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    @Test
+    public void uartUuid() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        structure(out, TYPE_FLAGS, new byte[] {0x06});
+        structure(out, AdvertisementParser.TYPE_UUID128_COMPLETE, UART_BYTES);
+        byte[] record = out.toByteArray();
+
+        assertEquals(Collections.singletonList(UART), AdvertisementParser.parseUUIDs(record));
+        assertTrue(AdvertisementParser.advertisesService(record, UART_BYTES));
+    }
+
+    @Test
+    public void shortUuids() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] uuid16 = new byte[4];
+        System.arraycopy(littleEndian(0x180D, 2), 0, uuid16, 0, 2);
+        System.arraycopy(littleEndian(0x180A, 2), 0, uuid16, 2, 2);
+        structure(out, AdvertisementParser.TYPE_UUID16_PARTIAL, uuid16);
+        structure(out, AdvertisementParser.TYPE_UUID32_COMPLETE, littleEndian(0xFEEDC0DEL, 4));
+        byte[] record = out.toByteArray();
+
+        assertEquals(Arrays.asList(shortUuid(0x180D), shortUuid(0x180A), shortUuid(0xFEEDC0DEL)),
+                AdvertisementParser.parseUUIDs(record));
+        assertFalse(AdvertisementParser.advertisesService(record, UART_BYTES));
+    }
+
+    @Test
+    public void truncatedStructure() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        structure(out, AdvertisementParser.TYPE_UUID16_COMPLETE, littleEndian(0x180D, 2));
+        structure(out, AdvertisementParser.TYPE_UUID128_COMPLETE, UART_BYTES);
+        byte[] full = out.toByteArray();
+        byte[] record = Arrays.copyOf(full, full.length - 1);
+
+        assertEquals(Collections.singletonList(shortUuid(0x180D)), AdvertisementParser.parseUUIDs(record));
+        assertFalse(AdvertisementParser.advertisesService(record, UART_BYTES));
+    }
+
+    @Test
+    public void zeroLengthStructureEndsTheRecord() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        structure(out, AdvertisementParser.TYPE_UUID16_COMPLETE, littleEndian(0x180D, 2));
+        out.write(0);
+        structure(out, AdvertisementParser.TYPE_UUID128_COMPLETE, UART_BYTES);
+        byte[] record = out.toByteArray();
+
+        assertEquals(Collections.singletonList(shortUuid(0x180D)), AdvertisementParser.parseUUIDs(record));
+        assertFalse(AdvertisementParser.advertisesService(record, UART_BYTES));
+    }
+
+    @Test
+    public void emptyAndNull() {
+        assertTrue(AdvertisementParser.parseUUIDs(null).isEmpty());
+        assertTrue(AdvertisementParser.parseUUIDs(new byte[0]).isEmpty());
+        assertFalse(AdvertisementParser.advertisesService(null, UART_BYTES));
+        assertFalse(AdvertisementParser.advertisesService(new byte[31], UART_BYTES));
+    }
+
+    // Records built from random lists of UUIDs, with other structures between them and zero
+    // padding after, parse back to the same list.
+    @Test
+    public void roundTrip() {
+        Random random = new Random(16);
+        for (int trial = 0; trial < 2000; trial++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            List<UUID> expected = new ArrayList<UUID>();
+            boolean hasUart = false;
+            int structures = random.nextInt(6);
+            for (int s = 0; s < structures; s++) {
+                int count = 1 + random.nextInt(3);
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                int kind = random.nextInt(4);
+                for (int i = 0; i < count; i++) {
+                    if (kind == 0) {
+                        long value = random.nextInt(0x10000);
+                        data.write(littleEndian(value, 2), 0, 2);
+                        expected.add(shortUuid(value));
+                    } else if (kind == 1) {
+                        long value = random.nextInt() & 0xFFFFFFFFL;
+                        data.write(littleEndian(value, 4), 0, 4);
+                        expected.add(shortUuid(value));
+                    } else if (kind == 2) {
+                        UUID uuid = random.nextInt(4) == 0 ? UART : new UUID(random.nextLong(), random.nextLong());
+                        hasUart |= uuid.equals(UART);
+                        data.write(AdvertisementParser.toAdvertisedBytes(uuid), 0, 16);
+                        expected.add(uuid);
+                    } else {
+                        data.write(random.nextInt(256));
+                    }
+                }
+                int type;
+                if (kind == 0) {
+                    type = AdvertisementParser.TYPE_UUID16_COMPLETE - random.nextInt(2);
+                } else if (kind == 1) {
+                    type = AdvertisementParser.TYPE_UUID32_COMPLETE - random.nextInt(2);
+                } else if (kind == 2) {
+                    type = AdvertisementParser.TYPE_UUID128_COMPLETE - random.nextInt(2);
+                } else {
+                    type = random.nextBoolean() ? TYPE_FLAGS : TYPE_NAME;
+                }
+                structure(out, type, data.toByteArray());
+            }
+            int padding = random.nextInt(4);
+            for (int i = 0; i < padding; i++) {
+                out.write(0);
+            }
+            byte[] record = out.toByteArray();
+
+            assertEquals(expected, AdvertisementParser.parseUUIDs(record));
+            assertEquals(hasUart, AdvertisementParser.advertisesService(record, UART_BYTES));
+        }
+    }
+
+    // Random bytes never throw, and whatever advertisesService finds parseUUIDs finds too.
+    @Test
+    public void randomRecords() {
+        Random random = new Random(61);
+        for (int trial = 0; trial < 20000; trial++) {
+            byte[] record = new byte[random.nextInt(64)];
+            random.nextBytes(record);
+            if (record.length >= 18 && random.nextBoolean()) {
+                // Plant the UART UUID somewhere, in a structure that may or may not fit.
+                int at = random.nextInt(record.length - 17);
+                record[at] = (byte) random.nextInt(20);
+                record[at + 1] = AdvertisementParser.TYPE_UUID128_COMPLETE;
+                System.arraycopy(UART_BYTES, 0, record, at + 2, 16);
+            }
+            List<UUID> uuids = AdvertisementParser.parseUUIDs(record);
+            assertEquals(uuids.contains(UART), AdvertisementParser.advertisesService(record, UART_BYTES));
+        }
+    }
+}
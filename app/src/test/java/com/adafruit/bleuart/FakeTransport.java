@@ -0,0 +1,66 @@
+package com.adafruit.bleuart;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A GattTransport the test drives by hand: nothing moves until drain() pulls packets, and
+// scheduled tasks only run from runTasks().  Every packet is acknowledged as soon as it is taken.
+class FakeTransport implements GattTransport {
+    GattTransport.Endpoint endpoint;
+    int sendRequests;
+    private final Map<Runnable, Long> tasks = new LinkedHashMap<Runnable, Long>();
+
+    @Override
+    public void setEndpoint(Endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public synchronized void requestSend(String peer) {
+        sendRequests++;
+    }
+
+    @Override
+    public synchronized void schedule(Runnable task, long delayMillis) {
+        tasks.put(task, delayMillis);
+    }
+
+    @Override
+    public synchronized void cancel(Runnable task) {
+        tasks.remove(task);
+    }
+
+    // Run every task scheduled so far, whatever its delay.
+    void runTasks() {
+        List<Runnable> due;
+        synchronized (this) {
+            due = new ArrayList<Runnable>(tasks.keySet());
+            tasks.clear();
+        }
+        for (Runnable task : due) {
+            task.run();
+        }
+    }
+
+    // Take every packet the endpoint has for the peer, at most maxLength bytes each.
+    List<byte[]> drain(String peer, int maxLength) {
+        List<byte[]> packets = new ArrayList<byte[]>();
+        byte[] packet;
+        while ((packet = endpoint.nextPacket(peer, maxLength)) != null) {
+            packets.add(packet);
+            endpoint.onPacketSent(peer, true);
+        }
+        return packets;
+    }
+
+    static byte[] concat(List<byte[]> packets) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            out.write(packet, 0, packet.length);
+        }
+        return out.toByteArray();
+    }
+}
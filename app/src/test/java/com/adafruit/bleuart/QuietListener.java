@@ -0,0 +1,17 @@
+package com.adafruit.bleuart;
+
+// A UartEngine.Listener that ignores everything, for engines whose callbacks a test doesn't look
+// at.  Override onReceive() to collect what arrives.
+class QuietListener implements UartEngine.Listener {
+    @Override
+    public void onReceive(String peer, byte[] data, int offset, int length) {
+    }
+
+    @Override
+    public void onBackpressure() {
+    }
+
+    @Override
+    public void onWritable() {
+    }
+}
@@ -0,0 +1,324 @@
+package com.adafruit.bleuart;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// A connection between one central and one peripheral with no radio behind it, for running
+// UartEngine in a plain JVM.  Time is virtual: run() steps from one connection event to the next,
+// and in each event moves up to packetsPerEvent packets of at most (MTU - 3) bytes each way,
+// central to peripheral first.  A packet is lost with the given probability and sent again in the
+// next event, as the link layer would, so loss only ever shows up as latency.  Losses above the
+// link layer can be added with setDropRate() and setFailRate().
+//
+//   SimulatedRadio radio = new SimulatedRadio(7500, 247, 4, 0.01, 1);
+//   UartEngine central = new UartEngine(radio.getCentral(), centralListener);
+//   UartEngine peripheral = new UartEngine(radio.getPeripheral(), peripheralListener);
+//   central.openPeer(SimulatedRadio.PERIPHERAL_ADDRESS);
+//   peripheral.openPeer(SimulatedRadio.CENTRAL_ADDRESS);
+//   central.send(null, data);
+//   radio.runUntilIdle(10 * 1000 * 1000);
+//
+// Both engines' Endpoint methods, listeners and scheduled tasks run on whichever thread calls
+// run(), one at a time.  Data can be sent from any thread, but a send that blocks on a full ring
+// (OverflowPolicy.BLOCK) only returns once run() drains it, so it has to come from another one.
+// The latency kept here is in virtual time; the engines' own metrics time packets on the wall
+// clock, and so does the flush deadline.
+public class SimulatedRadio {
+    public static final String CENTRAL_ADDRESS = "00:00:00:00:00:01";
+    public static final String PERIPHERAL_ADDRESS = "00:00:00:00:00:02";
+
+    private static final int ATT_HEADER_SIZE = 3;
+    private static final int MAX_MTU = 517; // Largest ATT MTU either end can ask for
+
+    private final long connectionIntervalMicros;
+    private int mtu; // ATT MTU in effect, the same both ways
+    private int requestedMtu; // Asked for with requestMtu() and not yet exchanged, or 0
+    private final int packetsPerEvent;
+    private final double lossRate;
+    private final Random random;
+    private double dropRate;
+    private double failRate;
+
+    private final End central = new End(PERIPHERAL_ADDRESS);
+    private final End peripheral = new End(CENTRAL_ADDRESS);
+
+    // Scheduled tasks by due time, then by order of scheduling; guarded by itself
+    private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+    private long taskSequence;
+
+    private long nowMicros;
+    private long nextEventMicros;
+    private long deliveredPackets;
+    private long deliveredBytes;
+    private long lostPackets;
+    private long droppedPackets;
+    private long failedPackets;
+    private final LatencyHistogram packetLatency = new LatencyHistogram();
+
+    // One end of the link, as the transport its engine sees.  peer is the address of the other end.
+    private class End implements GattTransport {
+        final String peer;
+        End other;
+        GattTransport.Endpoint endpoint;
+        byte[] pending; // Taken from the endpoint but not yet delivered
+        long pendingTakenMicros;
+
+        End(String peer) {
+            this.peer = peer;
+        }
+
+        // The address the other end knows this one by.
+        String address() {
+            return other.peer;
+        }
+
+        @Override
+        public void setEndpoint(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void requestSend(String peer) {
+            // Every connection event polls both ends, as the link layer does.
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            synchronized (tasks) {
+                removeTask(task);
+                tasks.add(new Task(nowMicros + Math.max(0, delayMillis) * 1000, taskSequence++, task));
+            }
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            synchronized (tasks) {
+                removeTask(task);
+            }
+        }
+
+        boolean hasPending() {
+            return pending != null
+                    || (endpoint != null && endpoint.hasPacket(peer, mtu - ATT_HEADER_SIZE));
+        }
+    }
+
+    private static class Task implements Comparable<Task> {
+        final long dueMicros;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long dueMicros, long sequence, Runnable runnable) {
+            this.dueMicros = dueMicros;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueMicros != other.dueMicros) {
+                return (dueMicros < other.dueMicros) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1 : (sequence == other.sequence) ? 0 : 1;
+        }
+    }
+
+    // lossRate is the chance of any one packet being lost, from 0 to 1; seed makes the losses
+    // repeatable.
+    public SimulatedRadio(long connectionIntervalMicros, int mtu, int packetsPerEvent, double lossRate, long seed) {
+        if (connectionIntervalMicros <= 0 || mtu <= ATT_HEADER_SIZE || packetsPerEvent <= 0
+                || lossRate < 0 || lossRate >= 1) {
+            throw new IllegalArgumentException("bad link parameters");
+        }
+        this.connectionIntervalMicros = connectionIntervalMicros;
+        this.mtu = mtu;
+        this.packetsPerEvent = packetsPerEvent;
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+        central.other = peripheral;
+        peripheral.other = central;
+    }
+
+    // The chance of a packet that crossed the link never reaching the other engine, though its
+    // sender was told it went: a notification the receiving stack dropped.
+    public void setDropRate(double rate) {
+        dropRate = rate;
+    }
+
+    // The chance of the sender being told a packet couldn't be sent: a notification the stack
+    // refused, or a failed write.  It ends the sender's share of the event.
+    public void setFailRate(double rate) {
+        failRate = rate;
+    }
+
+    // The central asks for a new ATT MTU, as BluetoothGatt.requestMtu() does.  The exchange takes
+    // the next connection event, and packets taken from then on are sized to the result, as
+    // onMtuChanged() makes the real transports do.  Packets already taken keep their size.
+    public void requestMtu(int mtu) {
+        if (mtu <= ATT_HEADER_SIZE) {
+            throw new IllegalArgumentException("bad MTU");
+        }
+        requestedMtu = Math.min(mtu, MAX_MTU);
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    // The transport for the central's engine, whose one peer is PERIPHERAL_ADDRESS.
+    public GattTransport getCentral() {
+        return central;
+    }
+
+    // The transport for the peripheral's engine, whose one peer is CENTRAL_ADDRESS.
+    public GattTransport getPeripheral() {
+        return peripheral;
+    }
+
+    // The link drops.  A packet taken but not yet delivered goes with it, unreported, as the
+    // stack cancels it; the engines find out through resetPeer() or closePeer().
+    public void disconnect() {
+        central.pending = null;
+        peripheral.pending = null;
+    }
+
+    // Run connection events and scheduled tasks for the given stretch of virtual time.
+    public void run(long durationMicros) {
+        long end = nowMicros + durationMicros;
+        while (nextEventMicros <= end) {
+            runTasksUntil(nextEventMicros);
+            nowMicros = nextEventMicros;
+            connectionEvent();
+            nextEventMicros += connectionIntervalMicros;
+        }
+        runTasksUntil(end);
+        nowMicros = end;
+    }
+
+    // Run until neither end has anything to send and no task is scheduled, or until maxMicros of
+    // virtual time have passed.  Returns true if the link went idle.
+    public boolean runUntilIdle(long maxMicros) {
+        long end = nowMicros + maxMicros;
+        while (!isIdle()) {
+            if (nextEventMicros > end) {
+                run(end - nowMicros);
+                return isIdle();
+            }
+            run(nextEventMicros - nowMicros);
+        }
+        return true;
+    }
+
+    private boolean isIdle() {
+        if (central.hasPending() || peripheral.hasPending()) {
+            return false;
+        }
+        // Asking for packets can schedule a flush, so look at the tasks after.
+        synchronized (tasks) {
+            return tasks.isEmpty();
+        }
+    }
+
+    public long getNowMicros() {
+        return nowMicros;
+    }
+
+    public long getDeliveredPackets() {
+        return deliveredPackets;
+    }
+
+    public long getDeliveredBytes() {
+        return deliveredBytes;
+    }
+
+    public long getLostPackets() {
+        return lostPackets;
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    public long getFailedPackets() {
+        return failedPackets;
+    }
+
+    // Virtual time from a packet leaving its engine to it arriving at the other, in nanoseconds.
+    public LatencyHistogram getPacketLatency() {
+        return packetLatency;
+    }
+
+    private void runTasksUntil(long micros) {
+        while (true) {
+            Task task;
+            synchronized (tasks) {
+                task = tasks.peek();
+                if (task == null || task.dueMicros > micros) {
+                    return;
+                }
+                tasks.poll();
+            }
+            nowMicros = Math.max(nowMicros, task.dueMicros);
+            task.runnable.run();
+        }
+    }
+
+    private void removeTask(Runnable runnable) {
+        for (Iterator<Task> it = tasks.iterator(); it.hasNext(); ) {
+            if (it.next().runnable == runnable) {
+                it.remove();
+            }
+        }
+    }
+
+    private void connectionEvent() {
+        if (requestedMtu != 0) {
+            mtu = requestedMtu;
+            requestedMtu = 0;
+        }
+        transfer(central);
+        transfer(peripheral);
+    }
+
+    // Move up to packetsPerEvent packets from one end to the other.  A lost packet ends the
+    // sender's share of the event, and is the first thing it sends in the next.
+    private void transfer(End from) {
+        if (from.endpoint == null) {
+            return;
+        }
+        for (int i = 0; i < packetsPerEvent; i++) {
+            if (from.pending == null) {
+                byte[] packet = from.endpoint.nextPacket(from.peer, mtu - ATT_HEADER_SIZE);
+                if (packet == null) {
+                    return;
+                }
+                from.pending = packet;
+                from.pendingTakenMicros = nowMicros;
+            }
+            if (lossRate > 0 && random.nextDouble() < lossRate) {
+                lostPackets++;
+                return;
+            }
+            byte[] packet = from.pending;
+            from.pending = null;
+            if (failRate > 0 && random.nextDouble() < failRate) {
+                failedPackets++;
+                from.endpoint.onPacketSent(from.peer, false);
+                return;
+            }
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                droppedPackets++;
+                from.endpoint.onPacketSent(from.peer, true);
+                continue;
+            }
+            deliveredPackets++;
+            deliveredBytes += packet.length;
+            packetLatency.record((nowMicros - from.pendingTakenMicros) * 1000);
+            if (from.other.endpoint != null) {
+                from.other.endpoint.onPacketReceived(from.address(), packet, 0, packet.length);
+            }
+            from.endpoint.onPacketSent(from.peer, true);
+        }
+    }
+}
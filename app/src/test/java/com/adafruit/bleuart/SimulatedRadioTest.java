@@ -0,0 +1,142 @@
+package com.adafruit.bleuart;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Central to peripheral over SimulatedRadio, in each mode the engine has.  Sends all happen
+// before the radio runs, on the same thread, so the TX ring is made big enough to hold them.
+public class SimulatedRadioTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TX_CAPACITY = 1 << 20;
+    private static final long MAX_MICROS = 600L * 1000 * 1000;
+
+    private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    private final List<String> messages = new ArrayList<String>();
+
+    private SimulatedRadio radio;
+    private UartEngine central;
+    private UartEngine peripheral;
+
+    private void connect(long intervalMicros, int mtu, int packetsPerEvent, double lossRate) {
+        radio = new SimulatedRadio(intervalMicros, mtu, packetsPerEvent, lossRate, 1);
+        central = new UartEngine(radio.getCentral(), new QuietListener());
+        peripheral = new UartEngine(radio.getPeripheral(), new QuietListener() {
+            @Override
+            public void onReceive(String peer, byte[] data, int offset, int length) {
+                stream.write(data, offset, length);
+                messages.add(new String(data, offset, length, UTF_8));
+            }
+        });
+        central.setTxLimits(TX_CAPACITY, TX_CAPACITY / 4, TX_CAPACITY * 3 / 4, OverflowPolicy.BLOCK);
+    }
+
+    private void open() {
+        central.openPeer(SimulatedRadio.PERIPHERAL_ADDRESS);
+        peripheral.openPeer(SimulatedRadio.CENTRAL_ADDRESS);
+    }
+
+    private byte[] sendRaw(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        for (int offset = 0; offset < length; offset += 1000) {
+            byte[] chunk = new byte[Math.min(1000, length - offset)];
+            System.arraycopy(data, offset, chunk, 0, chunk.length);
+            central.send(null, chunk);
+        }
+        return data;
+    }
+
+    private List<String> sendMessages(int count) {
+        List<String> sent = new ArrayList<String>();
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            String message = "message " + i + " " + random.nextInt() + " hello hello hello hello";
+            sent.add(message);
+            central.send(null, message.getBytes(UTF_8));
+        }
+        return sent;
+    }
+
+    @Test
+    public void raw() {
+        connect(7500, 247, 4, 0.01);
+        open();
+        byte[] sent = sendRaw(20000);
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        assertArrayEquals(sent, stream.toByteArray());
+        assertTrue(radio.getLostPackets() > 0);
+    }
+
+    @Test
+    public void cobs() {
+        connect(7500, 23, 4, 0.01);
+        central.setFrameCodec(new CobsFrameCodec());
+        peripheral.setFrameCodec(new CobsFrameCodec());
+        open();
+        List<String> sent = sendMessages(300);
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        assertEquals(sent, messages);
+    }
+
+    @Test
+    public void lengthPrefixCompressed() {
+        connect(7500, 185, 4, 0.01);
+        central.setFrameCodec(new LengthPrefixFrameCodec());
+        peripheral.setFrameCodec(new LengthPrefixFrameCodec());
+        central.setCompressionEnabled(true);
+        peripheral.setCompressionEnabled(true);
+        open();
+        central.offerCompression(SimulatedRadio.PERIPHERAL_ADDRESS);
+        // Compression starts with the first message after the peer agreed.
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+
+        List<String> sent = sendMessages(300);
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        assertTrue(central.isCompressing(SimulatedRadio.PERIPHERAL_ADDRESS));
+        assertEquals(sent, messages);
+    }
+
+    // Notifications the receiving stack drops and writes that fail are invisible to the link
+    // layer; only reliable mode gets them through.
+    @Test
+    public void reliableThroughThirtyPercentDrop() {
+        connect(7500, 247, 4, 0.01);
+        radio.setDropRate(0.3);
+        radio.setFailRate(0.05);
+        central.setReliableEnabled(true);
+        peripheral.setReliableEnabled(true);
+        open();
+        byte[] sent = sendRaw(50000);
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        assertArrayEquals(sent, stream.toByteArray());
+        assertTrue(radio.getDroppedPackets() > 0);
+        assertTrue(radio.getFailedPackets() > 0);
+    }
+
+    // A 2M-class link (7.5 ms interval, 247-byte MTU, four packets an event) can carry 244 * 4
+    // bytes every 7.5 ms, about 130 kB/s.  With 1% of packets lost and resent a connection
+    // event later, demand most of that, and nearly every packet across within two events.
+    @Test
+    public void throughputAndLatencyFloor() {
+        connect(7500, 247, 4, 0.01);
+        open();
+        byte[] sent = sendRaw(200000);
+        long start = radio.getNowMicros();
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        assertArrayEquals(sent, stream.toByteArray());
+
+        double bytesPerSecond = sent.length * 1e6 / (radio.getNowMicros() - start);
+        assertTrue("throughput " + bytesPerSecond, bytesPerSecond > 110000);
+        long p99Micros = radio.getPacketLatency().getPercentile(0.99) / 1000;
+        assertTrue("p99 latency " + p99Micros, p99Micros <= 2 * 7500);
+    }
+}
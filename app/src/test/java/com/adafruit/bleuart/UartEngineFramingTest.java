@@ -0,0 +1,114 @@
+package com.adafruit.bleuart;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UartEngineFramingTest {
+    private static final int MAX_PAYLOAD = 64;
+    private static final long MAX_MICROS = 60L * 1000 * 1000;
+
+    private final List<byte[]> received = new ArrayList<byte[]>();
+
+    private UartEngine.Listener collector() {
+        return new QuietListener() {
+            @Override
+            public void onReceive(String peer, byte[] data, int offset, int length) {
+                received.add(Arrays.copyOfRange(data, offset, offset + length));
+            }
+        };
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) ('a' + i % 26);
+        }
+        return message;
+    }
+
+    @Test
+    public void messageOverCodecMaximumIsDropped() {
+        String peer = SimulatedRadio.PERIPHERAL_ADDRESS;
+        UartEngine engine = new UartEngine(new FakeTransport(), collector());
+        engine.setFrameCodec(new LengthPrefixFrameCodec(MAX_PAYLOAD));
+        engine.openPeer(peer);
+
+        engine.send(null, message(MAX_PAYLOAD + 1));
+        assertEquals(0, engine.getQueuedBytes(peer));
+        engine.send(null, message(MAX_PAYLOAD));
+        assertTrue(engine.getQueuedBytes(peer) > MAX_PAYLOAD);
+    }
+
+    // Once the peer takes compressed frames, the header byte counts against the maximum too.
+    @Test
+    public void compressedMessageOverCodecMaximumIsDropped() {
+        SimulatedRadio radio = new SimulatedRadio(7500, 247, 4, 0, 1);
+        UartEngine central = new UartEngine(radio.getCentral(), collector());
+        UartEngine peripheral = new UartEngine(radio.getPeripheral(), collector());
+        for (UartEngine engine : new UartEngine[] {central, peripheral}) {
+            engine.setFrameCodec(new CobsFrameCodec(MAX_PAYLOAD));
+            engine.setCompressionEnabled(true);
+        }
+        central.openPeer(SimulatedRadio.PERIPHERAL_ADDRESS);
+        peripheral.openPeer(SimulatedRadio.CENTRAL_ADDRESS);
+        central.offerCompression(SimulatedRadio.PERIPHERAL_ADDRESS);
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+
+        central.send(null, message(MAX_PAYLOAD));
+        assertEquals(0, central.getQueuedBytes(SimulatedRadio.PERIPHERAL_ADDRESS));
+        assertFalse(central.isCompressing(SimulatedRadio.PERIPHERAL_ADDRESS));
+
+        central.send(null, message(MAX_PAYLOAD - 1));
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        assertTrue(central.isCompressing(SimulatedRadio.PERIPHERAL_ADDRESS));
+        assertEquals(1, received.size());
+        assertArrayEquals(message(MAX_PAYLOAD - 1), received.get(0));
+    }
+
+    // User messages that look like HELLO, START or an escape arrive as they were sent, before
+    // and after compression starts, and don't change how later frames are read.
+    @Test
+    public void controlLookalikesArriveAsData() {
+        SimulatedRadio radio = new SimulatedRadio(7500, 247, 4, 0, 1);
+        UartEngine central = new UartEngine(radio.getCentral(), collector());
+        UartEngine peripheral = new UartEngine(radio.getPeripheral(), collector());
+        for (UartEngine engine : new UartEngine[] {central, peripheral}) {
+            engine.setFrameCodec(new LengthPrefixFrameCodec(MAX_PAYLOAD));
+            engine.setCompressionEnabled(true);
+        }
+        central.openPeer(SimulatedRadio.PERIPHERAL_ADDRESS);
+        peripheral.openPeer(SimulatedRadio.CENTRAL_ADDRESS);
+
+        byte[][] sent = {
+                {(byte) 0xC0, 'U', 'Z', 0x01, 0x01},
+                {(byte) 0xC0, 'U', 'Z', 0x02, 0x01},
+                {(byte) 0xC0, 'U', 'Z', 0x03, 'x'},
+                {(byte) 0xC0, 'U', 'Z'},
+                message(20),
+        };
+        for (byte[] data : sent) {
+            central.send(null, data);
+        }
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        central.offerCompression(SimulatedRadio.PERIPHERAL_ADDRESS);
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        for (byte[] data : sent) {
+            central.send(null, data);
+        }
+        assertTrue(radio.runUntilIdle(MAX_MICROS));
+        assertTrue(central.isCompressing(SimulatedRadio.PERIPHERAL_ADDRESS));
+
+        assertEquals(2 * sent.length, received.size());
+        for (int i = 0; i < received.size(); i++) {
+            assertArrayEquals(sent[i % sent.length], received.get(i));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.adafruit.bleuart;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Sends are split into packets of at most (MTU - 3) bytes, each one full but the last.
+public class UartEngineMtuTest {
+    private static final String PEER = "00:00:00:00:00:02";
+    private static final int ATT_HEADER_SIZE = 3;
+
+    private FakeTransport transport;
+    private UartEngine engine;
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        engine = new UartEngine(transport, new QuietListener());
+        engine.openPeer(PEER);
+    }
+
+    private void assertSplit(int mtu, int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        engine.send(PEER, data);
+
+        int payload = mtu - ATT_HEADER_SIZE;
+        List<byte[]> packets = transport.drain(PEER, payload);
+        assertEquals((length + payload - 1) / payload, packets.size());
+        for (int i = 0; i < packets.size() - 1; i++) {
+            assertEquals(payload, packets.get(i).length);
+        }
+        assertTrue(packets.get(packets.size() - 1).length <= payload);
+        assertArrayEquals(data, FakeTransport.concat(packets));
+    }
+
+    @Test
+    public void defaultMtu() {
+        assertSplit(23, 1000);
+    }
+
+    @Test
+    public void mtu185() {
+        assertSplit(185, 1000);
+    }
+
+    @Test
+    public void mtu247() {
+        assertSplit(247, 1000);
+    }
+
+    @Test
+    public void exactMultiple() {
+        assertSplit(247, 244 * 4);
+    }
+
+    @Test
+    public void smallSendsAreCoalesced() {
+        for (int i = 0; i < 100; i++) {
+            engine.send(PEER, new byte[] {(byte) i});
+        }
+        List<byte[]> packets = transport.drain(PEER, 185 - ATT_HEADER_SIZE);
+        assertEquals(1, packets.size());
+        assertEquals(100, packets.get(0).length);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((byte) i, packets.get(0)[i]);
+        }
+    }
+
+    // An MTU exchange in the middle of a transfer: packets taken before it stay at the default
+    // size, the ones after fill the new MTU, and the bytes arrive unchanged.
+    @Test
+    public void mtuExchangeResizesPackets() {
+        SimulatedRadio radio = new SimulatedRadio(7500, 23, 4, 0, 1);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final List<Integer> sizes = new ArrayList<Integer>();
+        UartEngine central = new UartEngine(radio.getCentral(), new QuietListener());
+        UartEngine peripheral = new UartEngine(radio.getPeripheral(), new QuietListener() {
+            @Override
+            public void onReceive(String peer, byte[] data, int offset, int length) {
+                stream.write(data, offset, length);
+                sizes.add(length);
+            }
+        });
+        central.openPeer(SimulatedRadio.PERIPHERAL_ADDRESS);
+        peripheral.openPeer(SimulatedRadio.CENTRAL_ADDRESS);
+
+        byte[] data = new byte[5000];
+        new Random(5000).nextBytes(data);
+        central.send(null, data);
+        radio.run(2 * 7500);
+        int before = sizes.size();
+        assertEquals(3 * 4, before); // Events at 0, 7.5 and 15 ms
+        radio.requestMtu(247);
+        assertTrue(radio.runUntilIdle(10L * 1000 * 1000));
+
+        assertEquals(247, radio.getMtu());
+        assertArrayEquals(data, stream.toByteArray());
+        for (int i = 0; i < before; i++) {
+            assertEquals(23 - ATT_HEADER_SIZE, (int) sizes.get(i));
+        }
+        for (int i = before; i < sizes.size() - 1; i++) {
+            assertEquals(247 - ATT_HEADER_SIZE, (int) sizes.get(i));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.adafruit.bleuart;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// A packet the transport couldn't send goes back in front of the data still queued.
+public class UartEngineRequeueTest {
+    private static final String PEER = "00:00:00:00:00:02";
+
+    private FakeTransport transport;
+    private UartEngine engine;
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        engine = new UartEngine(transport, new QuietListener());
+        engine.openPeer(PEER);
+    }
+
+    private byte[] send(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        engine.send(PEER, data);
+        return data;
+    }
+
+    @Test
+    public void failedPacketGoesAgain() {
+        byte[] data = send(100);
+        byte[] first = engine.nextPacket(PEER, 20);
+        engine.onPacketSent(PEER, false);
+        assertEquals(100, engine.getQueuedBytes(PEER));
+
+        byte[] again = engine.nextPacket(PEER, 20);
+        assertArrayEquals(first, again);
+        engine.onPacketSent(PEER, true);
+        byte[] rest = FakeTransport.concat(transport.drain(PEER, 20));
+        byte[] all = new byte[again.length + rest.length];
+        System.arraycopy(again, 0, all, 0, again.length);
+        System.arraycopy(rest, 0, all, again.length, rest.length);
+        assertArrayEquals(data, all);
+    }
+
+    @Test
+    public void ringWrapsAroundTheFront() {
+        ByteRing ring = new ByteRing(8);
+        byte[] out = new byte[8];
+        ring.write(new byte[] {1, 2, 3, 4, 5, 6}, 0, 6);
+        ring.read(out, 0, 5);
+        ring.write(new byte[] {7, 8, 9}, 0, 3);
+        ring.unread(new byte[] {3, 4, 5}, 0, 3);
+        ring.unread(new byte[] {0, 1, 2}, 0, 3);
+
+        assertEquals(10, ring.size());
+        byte[] all = new byte[10];
+        assertEquals(10, ring.read(all, 0, all.length));
+        assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, all);
+    }
+
+    @Test
+    public void frameEndsComeBackWithTheLastRead() {
+        ByteRing ring = new ByteRing(8);
+        byte[] out = new byte[8];
+        ring.writeFrame(new byte[] {1, 2, 3}, 0, 3);
+        ring.writeFrame(new byte[] {4, 5}, 0, 2);
+        ring.writeFrame(new byte[] {6, 7, 8, 9}, 0, 4);
+        assertEquals(0, ring.toFrameEnd());
+        ring.read(out, 0, 2);
+        assertEquals(1, ring.toFrameEnd());
+        ring.read(out, 0, 4);
+        assertEquals(3, ring.toFrameEnd());
+        ring.unread(out, 0, 4);
+        assertEquals(1, ring.toFrameEnd());
+        ring.read(out, 0, 1);
+        assertEquals(0, ring.toFrameEnd());
+    }
+
+    // The link drops every few events, with packets lost and the one in flight cancelled.  After
+    // each reconnect the sender starts on a frame boundary, so at most the one frame each drop
+    // cut short is lost and every message that arrives is whole and in order.
+    @Test
+    public void resetMidTransferKeepsFramesWhole() {
+        SimulatedRadio radio = new SimulatedRadio(7500, 23, 2, 0.2, 3);
+        final List<byte[]> received = new ArrayList<byte[]>();
+        UartEngine central = new UartEngine(radio.getCentral(), new QuietListener());
+        UartEngine peripheral = new UartEngine(radio.getPeripheral(), new QuietListener() {
+            @Override
+            public void onReceive(String peer, byte[] data, int offset, int length) {
+                byte[] copy = new byte[length];
+                System.arraycopy(data, offset, copy, 0, length);
+                received.add(copy);
+            }
+        });
+        central.setTxLimits(1 << 16, 1 << 14, 3 << 14, OverflowPolicy.BLOCK);
+        central.setFrameCodec(new LengthPrefixFrameCodec());
+        peripheral.setFrameCodec(new LengthPrefixFrameCodec());
+        central.openPeer(SimulatedRadio.PERIPHERAL_ADDRESS);
+        peripheral.openPeer(SimulatedRadio.CENTRAL_ADDRESS);
+
+        List<byte[]> sent = new ArrayList<byte[]>();
+        Random random = new Random(19);
+        for (int i = 0; i < 200; i++) {
+            byte[] message = new byte[1 + random.nextInt(60)];
+            random.nextBytes(message);
+            sent.add(message);
+            central.send(null, message);
+        }
+        int resets = 0;
+        while (!radio.runUntilIdle(5 * 7500)) {
+            radio.disconnect();
+            central.resetPeer(SimulatedRadio.PERIPHERAL_ADDRESS);
+            peripheral.resetPeer(SimulatedRadio.CENTRAL_ADDRESS);
+            resets++;
+        }
+
+        assertTrue(resets > 10);
+        int next = 0;
+        for (byte[] message : received) {
+            while (next < sent.size() && !Arrays.equals(sent.get(next), message)) {
+                next++;
+            }
+            assertTrue("message out of order or garbled", next < sent.size());
+            next++;
+        }
+        assertTrue("lost " + (sent.size() - received.size()) + " in " + resets + " resets",
+                sent.size() - received.size() <= resets);
+    }
+}
@@ -0,0 +1,257 @@
+package com.adafruit.bleuart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Many threads sending at once into a small TX ring while a transport thread drains it, one
+// packet in flight at a time, into a second engine.  Nothing may be lost, duplicated, reordered
+// within a thread, or (with framing) interleaved within a message.
+public class UartEngineStressTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SENDER = "00:00:00:00:00:01";
+    private static final String RECEIVER = "00:00:00:00:00:02";
+    private static final int PACKET_LENGTH = 20;
+    private static final int THREADS = 8;
+
+    // Packets go from the sender's engine to the receiver's on one thread, the way a GATT
+    // callback thread would: a packet is taken only when the previous one has been reported sent.
+    private class LoopbackTransport implements GattTransport {
+        GattTransport.Endpoint endpoint;
+        final Map<Runnable, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<Runnable, ScheduledFuture<?>>();
+        boolean inFlight; // Transport thread only
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        int concurrent; // Transport thread only
+
+        final Runnable pump = new Runnable() {
+            @Override
+            public void run() {
+                if (inFlight) {
+                    return;
+                }
+                final byte[] packet = endpoint.nextPacket(RECEIVER, PACKET_LENGTH);
+                if (packet == null) {
+                    return;
+                }
+                inFlight = true;
+                concurrent++;
+                maxInFlight.set(Math.max(maxInFlight.get(), concurrent));
+                receiver.onPacketReceived(SENDER, packet, 0, packet.length);
+                // The write callback comes later, as its own event.
+                thread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        concurrent--;
+                        inFlight = false;
+                        endpoint.onPacketSent(RECEIVER, true);
+                        pump.run();
+                    }
+                });
+            }
+        };
+
+        @Override
+        public void setEndpoint(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void requestSend(String peer) {
+            thread.execute(pump);
+        }
+
+        @Override
+        public void schedule(final Runnable task, long delayMillis) {
+            ScheduledFuture<?> old = scheduled.put(task, thread.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scheduled.remove(task);
+                    task.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS));
+            if (old != null) {
+                old.cancel(false);
+            }
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            ScheduledFuture<?> old = scheduled.remove(task);
+            if (old != null) {
+                old.cancel(false);
+            }
+        }
+    }
+
+    private ScheduledExecutorService thread;
+    private LoopbackTransport transport;
+    private UartEngine sender;
+    private UartEngine receiver;
+    private final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+
+    @Before
+    public void setUp() {
+        thread = new ScheduledThreadPoolExecutor(1);
+        transport = new LoopbackTransport();
+        UartEngine.Listener collector = new QuietListener() {
+            @Override
+            public void onReceive(String peer, byte[] data, int offset, int length) {
+                byte[] copy = new byte[length];
+                System.arraycopy(data, offset, copy, 0, length);
+                received.add(copy);
+            }
+        };
+        sender = new UartEngine(transport, collector);
+        receiver = new UartEngine(new FakeTransport(), collector);
+        sender.setTxLimits(512, 128, 384, OverflowPolicy.BLOCK);
+        sender.openPeer(RECEIVER);
+        receiver.openPeer(SENDER);
+    }
+
+    @After
+    public void tearDown() {
+        thread.shutdownNow();
+    }
+
+    // Run the senders to completion, then wait for the transport thread to drain the ring.
+    private void runSenders(final SenderBody body) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        body.run(id);
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(30000);
+            assertTrue("sender stuck", !thread.isAlive());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (true) {
+            boolean idle = thread.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return !transport.inFlight && !transport.endpoint.hasPacket(RECEIVER, PACKET_LENGTH);
+                }
+            }).get();
+            if (idle) {
+                break;
+            }
+            assertTrue("link never drained", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(1, transport.maxInFlight.get());
+    }
+
+    private interface SenderBody {
+        void run(int id) throws Exception;
+    }
+
+    private static String message(int thread, int index) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(thread).append(':').append(index).append(':');
+        for (int i = 0; i < (thread * 7 + index) % 90; i++) {
+            builder.append((char) ('a' + (i + thread) % 26));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void framedSendsArriveWhole() throws Exception {
+        final int messages = 500;
+        sender.setFrameCodec(new CobsFrameCodec());
+        receiver.setFrameCodec(new CobsFrameCodec());
+
+        runSenders(new SenderBody() {
+            @Override
+            public void run(int id) {
+                for (int i = 0; i < messages; i++) {
+                    sender.send(null, message(id, i).getBytes(UTF_8));
+                }
+            }
+        });
+
+        assertEquals(THREADS * messages, received.size());
+        int[] next = new int[THREADS];
+        for (byte[] data : received) {
+            String text = new String(data, UTF_8);
+            int thread = Integer.parseInt(text.substring(0, text.indexOf(':')));
+            assertEquals(message(thread, next[thread]), text);
+            next[thread]++;
+        }
+    }
+
+    // Raw bytes carry their thread in the top three bits and a running count in the rest, so
+    // each thread's stream can be picked out of the interleaving and checked for gaps.
+    @Test
+    public void offeredBytesAreNeitherLostNorReordered() throws Exception {
+        final int bytesPerThread = 20000;
+
+        runSenders(new SenderBody() {
+            @Override
+            public void run(int id) throws InterruptedException {
+                byte[] chunk = new byte[37];
+                int sent = 0;
+                while (sent < bytesPerThread) {
+                    int length = Math.min(chunk.length, bytesPerThread - sent);
+                    for (int i = 0; i < length; i++) {
+                        chunk[i] = (byte) ((id << 5) | ((sent + i) & 0x1F));
+                    }
+                    int offset = 0;
+                    while (offset < length) {
+                        int taken = sender.offer(chunk, offset, length - offset);
+                        if (taken == 0) {
+                            sender.awaitWritable(10);
+                        }
+                        offset += taken;
+                    }
+                    sent += length;
+                }
+            }
+        });
+
+        int[] counts = new int[THREADS];
+        for (byte[] data : received) {
+            for (byte b : data) {
+                int thread = (b & 0xFF) >> 5;
+                assertEquals((byte) ((thread << 5) | (counts[thread] & 0x1F)), b);
+                counts[thread]++;
+            }
+        }
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(bytesPerThread, counts[t]);
+        }
+    }
+}
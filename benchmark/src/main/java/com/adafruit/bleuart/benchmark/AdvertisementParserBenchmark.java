@@ -0,0 +1,84 @@
+package com.adafruit.bleuart.benchmark;
+
+import com.adafruit.bleuart.AdvertisementParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Scan-time advertisement parsing: the full parse of every listed UUID, and the allocation-free
+// check the scan callback uses to pick out UART peripherals.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AdvertisementParserBenchmark {
+    private static final UUID UART_UUID = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+
+    private final byte[] uartUuid = AdvertisementParser.toAdvertisedBytes(UART_UUID);
+
+    // A UART peripheral's advertisement and scan response, as onScanResult reports them: flags,
+    // the 128-bit UART service, then a name and the 16-bit Device Information service, padded
+    // to 62 bytes.
+    private final byte[] uartRecord = record(
+            new byte[] {0x02, 0x01, 0x06},
+            uuid128(UART_UUID),
+            new byte[] {0x08, 0x09, 'B', 'l', 'u', 'e', 'N', 'e', 't'},
+            new byte[] {0x03, 0x03, 0x0A, 0x18});
+
+    // Something else on the air: flags, manufacturer data and a list of 16-bit services.
+    private final byte[] otherRecord = record(
+            new byte[] {0x02, 0x01, 0x1A},
+            new byte[] {0x0B, (byte) 0xFF, 0x4C, 0x00, 0x10, 0x06, 0x11, 0x1E, 0x4C, 0x2A, 0x5B, 0x01},
+            new byte[] {0x07, 0x03, 0x0F, 0x18, 0x0A, 0x18, 0x0D, 0x18});
+
+    @Benchmark
+    public List<UUID> parseUuidsUart() {
+        return AdvertisementParser.parseUUIDs(uartRecord);
+    }
+
+    @Benchmark
+    public List<UUID> parseUuidsOther() {
+        return AdvertisementParser.parseUUIDs(otherRecord);
+    }
+
+    @Benchmark
+    public boolean matchUart() {
+        return AdvertisementParser.advertisesService(uartRecord, uartUuid);
+    }
+
+    @Benchmark
+    public boolean matchOther() {
+        return AdvertisementParser.advertisesService(otherRecord, uartUuid);
+    }
+
+    private static byte[] uuid128(UUID uuid) {
+        byte[] structure = new byte[18];
+        structure[0] = 17;
+        structure[1] = AdvertisementParser.TYPE_UUID128_COMPLETE;
+        System.arraycopy(AdvertisementParser.toAdvertisedBytes(uuid), 0, structure, 2, 16);
+        return structure;
+    }
+
+    private static byte[] record(byte[]... structures) {
+        byte[] record = new byte[62];
+        int offset = 0;
+        for (byte[] structure : structures) {
+            System.arraycopy(structure, 0, record, offset, structure.length);
+            offset += structure.length;
+        }
+        return record;
+    }
+}
@@ -0,0 +1,68 @@
+package com.adafruit.bleuart.benchmark;
+
+import com.adafruit.bleuart.FrameCompressor;
+import com.adafruit.bleuart.FrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Per-message deflate against the static dictionary.  The compression ratio for each payload
+// is the size of the encoded message, which the benchmark doesn't report; CPU per message is
+// what it times.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    @Param({"32", "244", "4096"})
+    public int length;
+
+    @Param({"text", "binary"})
+    public String payload;
+
+    private FrameCompressor compressor;
+    private byte[] message;
+    private byte[] encoded;
+    private int encodedLength;
+    private Blackhole blackhole;
+
+    private final FrameDecoder.Listener listener = new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            blackhole.consume(length);
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        compressor = new FrameCompressor(4096);
+        message = Payloads.of(payload, length);
+        encoded = new byte[compressor.maxEncodedLength(length)];
+        encodedLength = compressor.encode(message, 0, length, encoded, 0);
+    }
+
+    @Benchmark
+    public int encode() {
+        return compressor.encode(message, 0, length, encoded, 0);
+    }
+
+    @Benchmark
+    public boolean decode(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        return compressor.decode(encoded, 0, encodedLength, listener);
+    }
+}
@@ -0,0 +1,90 @@
+package com.adafruit.bleuart.benchmark;
+
+import com.adafruit.bleuart.CobsFrameCodec;
+import com.adafruit.bleuart.UartEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// One send() through the engine and out as packets: framing, queueing into each peer's TX ring,
+// and cutting the rings into MTU-sized packets.  With more than one peer this is the fan-out a
+// peripheral does to every central it serves.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineSendBenchmark {
+    private static final int PACKET_LENGTH = 244; // Payload of a 247-byte MTU
+
+    @Param({"1", "4", "8"})
+    public int peers;
+
+    @Param({"20", "244", "2048"})
+    public int length;
+
+    @Param({"raw", "cobs"})
+    public String framing;
+
+    private NullTransport transport;
+    private UartEngine engine;
+    private String[] addresses;
+    private byte[] message;
+
+    @Setup
+    public void setUp() {
+        transport = new NullTransport();
+        engine = new UartEngine(transport, new UartEngine.Listener() {
+            @Override
+            public void onReceive(String peer, byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void onBackpressure() {
+            }
+
+            @Override
+            public void onWritable() {
+            }
+        });
+        if ("cobs".equals(framing)) {
+            engine.setFrameCodec(new CobsFrameCodec());
+        }
+        addresses = new String[peers];
+        for (int i = 0; i < peers; i++) {
+            addresses[i] = String.format("00:00:00:00:01:%02X", i);
+            engine.openPeer(addresses[i]);
+        }
+        message = Payloads.of("text", length);
+    }
+
+    // Send to every peer, then take all of it back out.
+    @Benchmark
+    public int sendAll() {
+        engine.send(null, message);
+        int bytes = 0;
+        for (String address : addresses) {
+            bytes += transport.drain(address, PACKET_LENGTH);
+        }
+        return bytes;
+    }
+
+    // Send to the first peer only.
+    @Benchmark
+    public int sendOne() {
+        engine.send(addresses[0], message);
+        return transport.drain(addresses[0], PACKET_LENGTH);
+    }
+}
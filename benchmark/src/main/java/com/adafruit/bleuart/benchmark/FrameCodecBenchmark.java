@@ -0,0 +1,82 @@
+package com.adafruit.bleuart.benchmark;
+
+import com.adafruit.bleuart.CobsFrameCodec;
+import com.adafruit.bleuart.Crc16;
+import com.adafruit.bleuart.FrameCodec;
+import com.adafruit.bleuart.FrameDecoder;
+import com.adafruit.bleuart.LengthPrefixFrameCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Framing one message, and reassembling it from packets the size a link would deliver.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+    @Param({"cobs", "length"})
+    public String codec;
+
+    @Param({"20", "244", "4096"})
+    public int length;
+
+    @Param({"text", "binary"})
+    public String payload;
+
+    private FrameCodec frameCodec;
+    private FrameDecoder decoder;
+    private byte[] message;
+    private byte[] frame;
+    private int frameLength;
+    private Blackhole blackhole;
+
+    private final FrameDecoder.Listener listener = new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            blackhole.consume(length);
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        frameCodec = "cobs".equals(codec) ? new CobsFrameCodec() : new LengthPrefixFrameCodec();
+        decoder = frameCodec.newDecoder();
+        message = Payloads.of(payload, length);
+        frame = new byte[frameCodec.maxEncodedLength(length)];
+        frameLength = frameCodec.encode(message, 0, length, frame, 0);
+    }
+
+    @Benchmark
+    public int encode() {
+        return frameCodec.encode(message, 0, length, frame, 0);
+    }
+
+    // The frame arrives in 244-byte packets, the payload of a 247-byte MTU.
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        for (int offset = 0; offset < frameLength; offset += 244) {
+            decoder.decode(frame, offset, Math.min(244, frameLength - offset), listener);
+        }
+    }
+
+    @Benchmark
+    public int crc16() {
+        return Crc16.update(Crc16.INITIAL, message, 0, length);
+    }
+}
@@ -0,0 +1,38 @@
+package com.adafruit.bleuart.benchmark;
+
+import com.adafruit.bleuart.GattTransport;
+
+// A transport that moves nothing by itself.  Benchmarks pull packets from the engine with
+// drain(), so what they time is the engine's work and nothing else.
+class NullTransport implements GattTransport {
+    private Endpoint endpoint;
+
+    @Override
+    public void setEndpoint(Endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public void requestSend(String peer) {
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+    }
+
+    // Take every packet queued for the peer, as a link with no limit on packets per event would.
+    // Returns the number of bytes taken.
+    int drain(String peer, int maxLength) {
+        int bytes = 0;
+        byte[] packet;
+        while ((packet = endpoint.nextPacket(peer, maxLength)) != null) {
+            bytes += packet.length;
+            endpoint.onPacketSent(peer, true);
+        }
+        return bytes;
+    }
+}
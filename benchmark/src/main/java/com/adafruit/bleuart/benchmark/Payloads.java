@@ -0,0 +1,31 @@
+package com.adafruit.bleuart.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+// Message contents shared by the benchmarks, all from a fixed seed so runs compare.
+final class Payloads {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Payloads() {
+    }
+
+    // "text" is telemetry lines of the kind compression is tuned for, "binary" is random bytes
+    // that neither compress nor avoid the COBS delimiter.
+    static byte[] of(String kind, int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(42);
+        if ("binary".equals(kind)) {
+            random.nextBytes(data);
+            return data;
+        }
+        StringBuilder sb = new StringBuilder(length + 64);
+        while (sb.length() < length) {
+            sb.append("T=").append(20 + random.nextInt(10)).append('.').append(random.nextInt(10))
+                    .append("C H=").append(30 + random.nextInt(40))
+                    .append("% V=3.").append(random.nextInt(100)).append("V\n");
+        }
+        System.arraycopy(sb.toString().getBytes(UTF_8), 0, data, 0, length);
+        return data;
+    }
+}
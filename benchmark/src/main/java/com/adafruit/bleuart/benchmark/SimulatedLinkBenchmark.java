@@ -0,0 +1,118 @@
+package com.adafruit.bleuart.benchmark;
+
+import com.adafruit.bleuart.CobsFrameCodec;
+import com.adafruit.bleuart.OverflowPolicy;
+import com.adafruit.bleuart.SimulatedRadio;
+import com.adafruit.bleuart.UartEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// 64 KB of telemetry from a central's engine to a peripheral's over SimulatedRadio, sent as
+// 256-byte messages.  Times the CPU both ends spend per transfer; the simulated link has no
+// real airtime, so the score is what the data path costs, not how fast the radio is.  "small"
+// is a 23-byte MTU with one packet per event, "large" a 247-byte MTU with six.  With reliable
+// mode on, the peripheral's stack also drops the given share of packets after the link delivers
+// them, and the transfer has to recover them.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulatedLinkBenchmark {
+    private static final int TRANSFER_LENGTH = 64 * 1024;
+    private static final int MESSAGE_LENGTH = 256;
+
+    @Param({"raw", "cobs", "compressed"})
+    public String framing;
+
+    @Param({"small", "large"})
+    public String link;
+
+    @Param({"0", "0.05"})
+    public double loss;
+
+    @Param({"false", "true"})
+    public boolean reliable;
+
+    private SimulatedRadio radio;
+    private UartEngine central;
+    private long received;
+    private byte[][] messages;
+
+    @Setup
+    public void setUp() {
+        boolean small = "small".equals(link);
+        radio = new SimulatedRadio(7500, small ? 23 : 247, small ? 1 : 6, loss, 1);
+        central = new UartEngine(radio.getCentral(), new Sink());
+        UartEngine peripheral = new UartEngine(radio.getPeripheral(), new Sink());
+        if (reliable) {
+            radio.setDropRate(loss);
+            central.setReliableEnabled(true);
+            peripheral.setReliableEnabled(true);
+        }
+        // Room for the whole transfer, so send() never blocks the thread that runs the radio.
+        central.setTxLimits(2 * TRANSFER_LENGTH, TRANSFER_LENGTH / 2, TRANSFER_LENGTH * 3 / 2,
+                OverflowPolicy.BLOCK);
+        if (!"raw".equals(framing)) {
+            central.setFrameCodec(new CobsFrameCodec());
+            peripheral.setFrameCodec(new CobsFrameCodec());
+        }
+        if ("compressed".equals(framing)) {
+            central.setCompressionEnabled(true);
+            peripheral.setCompressionEnabled(true);
+        }
+        central.openPeer(SimulatedRadio.PERIPHERAL_ADDRESS);
+        peripheral.openPeer(SimulatedRadio.CENTRAL_ADDRESS);
+        central.offerCompression(SimulatedRadio.PERIPHERAL_ADDRESS);
+        radio.runUntilIdle(TimeUnit.SECONDS.toMicros(10));
+
+        byte[] telemetry = Payloads.of("text", TRANSFER_LENGTH);
+        messages = new byte[TRANSFER_LENGTH / MESSAGE_LENGTH][MESSAGE_LENGTH];
+        for (int i = 0; i < messages.length; i++) {
+            System.arraycopy(telemetry, i * MESSAGE_LENGTH, messages[i], 0, MESSAGE_LENGTH);
+        }
+    }
+
+    @Benchmark
+    public long transfer() {
+        received = 0;
+        for (byte[] message : messages) {
+            central.send(null, message);
+        }
+        if (!radio.runUntilIdle(TimeUnit.HOURS.toMicros(1)) || received != TRANSFER_LENGTH) {
+            throw new IllegalStateException("received " + received + " of " + TRANSFER_LENGTH + " bytes");
+        }
+        if ("compressed".equals(framing) && !central.isCompressing(SimulatedRadio.PERIPHERAL_ADDRESS)) {
+            throw new IllegalStateException("compression wasn't negotiated");
+        }
+        return received;
+    }
+
+    private class Sink implements UartEngine.Listener {
+        @Override
+        public void onReceive(String peer, byte[] data, int offset, int length) {
+            received += length;
+        }
+
+        @Override
+        public void onBackpressure() {
+        }
+
+        @Override
+        public void onWritable() {
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.adafruit.bleuart.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+// The UTF-8 encoding send(String) does before anything is queued.  forNameEachCall is what both
+// roles do today, looking the charset up on every send; cachedCharset looks it up once.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StringEncodingBenchmark {
+    @Param({"ascii", "unicode"})
+    public String text;
+
+    @Param({"16", "240"})
+    public int length;
+
+    private String message;
+
+    @Setup
+    public void setUp() {
+        String unit = "ascii".equals(text) ? "T=23.4C H=45% " : "T=23.4\u00B0C \u0394=0.1 ";
+        StringBuilder sb = new StringBuilder(length + unit.length());
+        while (sb.length() < length) {
+            sb.append(unit);
+        }
+        message = sb.substring(0, length);
+    }
+
+    @Benchmark
+    public byte[] forNameEachCall() {
+        return message.getBytes(Charset.forName("UTF-8"));
+    }
+
+    @Benchmark
+    public byte[] cachedCharset() {
+        return message.getBytes(Payloads.UTF_8);
+    }
+}